@@ -0,0 +1,116 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.binder.file;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+
+/**
+ * Encoding and parsing of single messages in the text and binary formats, without any
+ * I/O.
+ *
+ * @author Dave Syer
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecordsBenchmark {
+
+	@Param({ "single", "multi", "headers" })
+	private String shape;
+
+	private Message<?> message;
+
+	private final StringBuilder builder = new StringBuilder();
+
+	/**
+	 * The text record in a direct buffer, like the one a reader fills from a file.
+	 */
+	private ByteBuffer direct;
+
+	private byte[] binary;
+
+	@Setup
+	public void setup() {
+		switch (this.shape) {
+		case "multi":
+			this.message = MessageBuilder
+					.withPayload("hello world\nthis is a\nmulti-line payload").build();
+			break;
+		case "headers":
+			MessageBuilder<String> builder = MessageBuilder.withPayload("hello world");
+			for (int i = 0; i < 10; i++) {
+				builder.setHeader("header" + i, "value" + i);
+			}
+			this.message = builder.build();
+			break;
+		default:
+			this.message = MessageBuilder.withPayload("hello world").build();
+		}
+		StringBuilder sb = new StringBuilder();
+		TextRecords.encode(this.message, sb);
+		byte[] text = sb.toString().getBytes(StandardCharsets.UTF_8);
+		this.direct = ByteBuffer.allocateDirect(text.length);
+		this.direct.put(text);
+		this.binary = BinaryRecords.encode(this.message);
+	}
+
+	@Benchmark
+	public byte[] encodeText() {
+		this.builder.setLength(0);
+		TextRecords.encode(this.message, this.builder);
+		return this.builder.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Benchmark
+	public byte[] encodeBinary() {
+		return BinaryRecords.encode(this.message);
+	}
+
+	@Benchmark
+	public Message<?> parseText() throws IOException {
+		this.direct.clear();
+		return TextRecords.parse(new RecordReader(this.direct));
+	}
+
+	@Benchmark
+	public Message<?> decodeBinary() {
+		return BinaryRecords.decode(this.binary);
+	}
+
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.binder.file;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.util.FileSystemUtils;
+
+/**
+ * End to end sending and receiving through a {@link MessageController}, over a regular
+ * file or a named pipe (which needs <code>mkfifo</code>, so it only works on Unix-like
+ * systems).
+ *
+ * @author Dave Syer
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoundTripBenchmark {
+
+	private static final int BURST = 100;
+
+	private static final String NAME = "roundtrip";
+
+	@Param({ "file", "fifo" })
+	private String type;
+
+	private File root;
+
+	private MessageController controller;
+
+	private final Message<?> message = MessageBuilder.withPayload("hello world")
+			.build();
+
+	@Setup
+	public void setup() throws Exception {
+		this.root = Files.createTempDirectory("benchmark").toFile();
+		File file = new File(this.root, NAME);
+		if ("fifo".equals(this.type)) {
+			Process process = new ProcessBuilder("mkfifo", file.getAbsolutePath())
+					.inheritIO().start();
+			if (process.waitFor() != 0) {
+				throw new IllegalStateException("Cannot create named pipe: " + file);
+			}
+		}
+		else {
+			file.createNewFile();
+		}
+		this.controller = new MessageController(this.root.getAbsolutePath());
+		// Open both ends before measuring anything
+		this.controller.send(NAME, this.message);
+		receive();
+	}
+
+	@TearDown
+	public void close() throws Exception {
+		this.controller.close();
+		FileSystemUtils.deleteRecursively(this.root);
+	}
+
+	@Benchmark
+	public Message<?> roundTrip() {
+		this.controller.send(NAME, this.message);
+		return receive();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BURST)
+	public Message<?> burst() {
+		for (int i = 0; i < BURST; i++) {
+			this.controller.send(NAME, this.message);
+		}
+		Message<?> result = null;
+		for (int i = 0; i < BURST; i++) {
+			result = receive();
+		}
+		return result;
+	}
+
+	private Message<?> receive() {
+		Message<?> result = this.controller.receive(NAME, 10, TimeUnit.SECONDS);
+		if (result == null) {
+			throw new IllegalStateException("No message received from: " + NAME);
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.binder.file;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+
+/**
+ * Encoding and decoding of messages in the binary record format. A record is laid out
+ * as
+ *
+ * <pre>
+ * magic (1 byte) | length (4 bytes) | flags (1 byte) | header count (2 bytes)
+ *   | headers | payload
+ * </pre>
+ *
+ * where the length covers everything after the length field itself, so a reader can
+ * check that a whole record is available with a single bounds check. The magic byte is
+ * never the first byte of a UTF-8 encoded line, so binary records can be told apart
+ * from text records without any configuration on the consumer side. Payloads are raw
+ * bytes, with a flag to say if they should be decoded as a UTF-8 string, or another to
+ * say that they were encoded by a {@link PayloadCodec} (in which case the payload
+ * starts with the type name: length (2 bytes) | UTF-8 bytes). Headers are
+ * encoded by a {@link HeaderCodec}, which keeps their types and can refer to repeated
+ * keys and values by id. Older records, where the typed headers flag is not set, have
+ * only string headers (key length (2 bytes), key, value length (4 bytes), value).
+ *
+ * @author Dave Syer
+ *
+ */
+final class BinaryRecords {
+
+	public static final int MAGIC = 0xB1;
+
+	public static final int PREFIX_LENGTH = 5;
+
+	private static final int STRING_PAYLOAD = 0x01;
+
+	private static final int TYPED_HEADERS = 0x02;
+
+	private static final int CODEC_PAYLOAD = 0x04;
+
+	private BinaryRecords() {
+	}
+
+	public static boolean isBinary(byte[] record) {
+		return record.length > 0 && (record[0] & 0xff) == MAGIC;
+	}
+
+	/**
+	 * @param bytes a buffer containing the start of a record (or a
+	 * {@link CompressedBlocks compressed block}, which has the same prefix)
+	 * @param offset the offset of the record in the buffer
+	 * @return the length of the record after its prefix
+	 */
+	public static int length(byte[] bytes, int offset) {
+		int magic = bytes[offset] & 0xff;
+		if (magic != MAGIC && magic != CompressedBlocks.MAGIC) {
+			throw new IllegalStateException(
+					"Not a binary record (magic=" + bytes[offset] + ")");
+		}
+		return ByteBuffer.wrap(bytes, offset + 1, 4).getInt();
+	}
+
+	public static byte[] encode(Message<?> message) {
+		return encode(message, new HeaderCodec());
+	}
+
+	/**
+	 * @param message the message to encode
+	 * @param codec the codec for the headers (whose dictionary, if any, is updated)
+	 * @return the record
+	 */
+	public static byte[] encode(Message<?> message, HeaderCodec codec) {
+		return encode(message, codec, null);
+	}
+
+	/**
+	 * @param message the message to encode
+	 * @param codec the codec for the headers (whose dictionary, if any, is updated)
+	 * @param payloads the codec for object payloads (or null to encode them as strings)
+	 * @return the record
+	 */
+	public static byte[] encode(Message<?> message, HeaderCodec codec,
+			PayloadCodec payloads) {
+		Object payload = message.getPayload();
+		int flags = TYPED_HEADERS;
+		byte[] type = null;
+		byte[] body;
+		if (payload instanceof byte[]) {
+			body = (byte[]) payload;
+		}
+		else if (payloads != null && payloads.isSupported(payload)) {
+			type = payloads.type(payload.getClass());
+			body = payloads.encode(payload);
+			flags |= CODEC_PAYLOAD;
+		}
+		else {
+			body = payload.toString().getBytes(StandardCharsets.UTF_8);
+			flags |= STRING_PAYLOAD;
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+				PREFIX_LENGTH + 64 + body.length);
+		DataOutputStream output = new DataOutputStream(bytes);
+		try {
+			// Placeholder for the length
+			output.writeByte(MAGIC);
+			output.writeInt(0);
+			output.writeByte(flags);
+			codec.encode(message.getHeaders(), output);
+			if (type != null) {
+				output.writeShort(type.length);
+				output.write(type);
+			}
+			output.write(body);
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Cannot encode message", e);
+		}
+		byte[] record = bytes.toByteArray();
+		ByteBuffer.wrap(record, 1, 4).putInt(record.length - PREFIX_LENGTH);
+		return record;
+	}
+
+	/**
+	 * @param record a complete record including the prefix
+	 * @return the decoded message
+	 */
+	public static Message<?> decode(byte[] record) {
+		return decode(record, new HeaderCodec());
+	}
+
+	/**
+	 * @param record a complete record including the prefix
+	 * @param codec the codec for the headers (whose dictionary, if any, is updated)
+	 * @return the decoded message
+	 */
+	public static Message<?> decode(byte[] record, HeaderCodec codec) {
+		return decode(record, codec, null);
+	}
+
+	/**
+	 * @param record a complete record including the prefix
+	 * @param codec the codec for the headers (whose dictionary, if any, is updated)
+	 * @param payloads the codec for object payloads (if null, or the type is not
+	 * available, they are decoded as raw bytes)
+	 * @return the decoded message
+	 */
+	public static Message<?> decode(byte[] record, HeaderCodec codec,
+			PayloadCodec payloads) {
+		ByteBuffer buffer = ByteBuffer.wrap(record);
+		if ((buffer.get() & 0xff) != MAGIC) {
+			throw new IllegalStateException("Not a binary record");
+		}
+		int length = buffer.getInt();
+		if (length > buffer.remaining()) {
+			throw new IllegalStateException("Truncated binary record (expected "
+					+ length + " bytes but found " + buffer.remaining() + ")");
+		}
+		try {
+			int flags = buffer.get();
+			Map<String, Object> headers;
+			if ((flags & TYPED_HEADERS) != 0) {
+				headers = codec.decode(buffer);
+			}
+			else {
+				int count = buffer.getShort() & 0xffff;
+				headers = new LinkedHashMap<>();
+				for (int i = 0; i < count; i++) {
+					String key = string(buffer, buffer.getShort() & 0xffff);
+					headers.put(key, string(buffer, buffer.getInt()));
+				}
+			}
+			String type = (flags & CODEC_PAYLOAD) != 0
+					? string(buffer, buffer.getShort() & 0xffff)
+					: null;
+			int size = PREFIX_LENGTH + length - buffer.position();
+			Object payload;
+			if ((flags & STRING_PAYLOAD) != 0) {
+				payload = string(buffer, size);
+			}
+			else {
+				byte[] bytes = new byte[size];
+				buffer.get(bytes);
+				payload = type != null && payloads != null
+						? payloads.decode(type, bytes)
+						: null;
+				if (payload == null) {
+					payload = bytes;
+				}
+			}
+			return MessageBuilder.withPayload(payload).copyHeadersIfAbsent(headers)
+					.build();
+		}
+		catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+			throw new IllegalStateException("Corrupt binary record", e);
+		}
+	}
+
+	private static String string(ByteBuffer buffer, int length) {
+		return HeaderCodec.string(buffer, length);
+	}
+
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.binder.file;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.springframework.messaging.Message;
+
+/**
+ * Encoding and decoding of compressed blocks of messages. A block is laid out as
+ *
+ * <pre>
+ * magic (1 byte) | length (4 bytes) | record count (4 bytes)
+ *   | uncompressed length (4 bytes) | deflated records
+ * </pre>
+ *
+ * where the records are in the {@link BinaryRecords binary format} (with a header
+ * dictionary that starts afresh in each block) and, as for a binary record, the length
+ * covers everything after the length field itself. Readers can tell blocks apart from
+ * other records by the magic byte (which, like the one for binary records, never starts
+ * a line of UTF-8 text), and skip over a whole block without inflating it. Blocks are
+ * always written and read whole, so the start of each block is a safe place for a
+ * consumer to resume from.
+ *
+ * @author Dave Syer
+ *
+ */
+final class CompressedBlocks {
+
+	public static final int MAGIC = 0xB2;
+
+	private static final int HEADER_LENGTH = 13;
+
+	private CompressedBlocks() {
+	}
+
+	public static boolean isBlock(byte[] record) {
+		return record.length > 0 && (record[0] & 0xff) == MAGIC;
+	}
+
+	/**
+	 * @param records the binary records to compress
+	 * @param length the number of bytes of records
+	 * @param count the number of records
+	 * @param deflater a deflater to use (it is reset before and after use)
+	 * @return the block
+	 */
+	public static byte[] compress(byte[] records, int length, int count,
+			Deflater deflater) {
+		deflater.reset();
+		deflater.setInput(records, 0, length);
+		deflater.finish();
+		byte[] result = new byte[HEADER_LENGTH + Math.max(64, length / 2)];
+		int size = HEADER_LENGTH;
+		while (!deflater.finished()) {
+			if (size == result.length) {
+				result = Arrays.copyOf(result, result.length * 2);
+			}
+			size += deflater.deflate(result, size, result.length - size);
+		}
+		deflater.reset();
+		ByteBuffer.wrap(result).put((byte) MAGIC).putInt(size - 5).putInt(count)
+				.putInt(length);
+		return size == result.length ? result : Arrays.copyOf(result, size);
+	}
+
+	/**
+	 * @param block a complete block including the prefix
+	 * @return the number of messages in the block (without inflating it)
+	 */
+	public static int count(byte[] block) {
+		return ByteBuffer.wrap(block).getInt(5);
+	}
+
+	/**
+	 * @param block a complete block including the prefix
+	 * @param payloads the codec for object payloads (may be null)
+	 * @return the decoded messages
+	 */
+	public static List<Message<?>> decode(byte[] block, PayloadCodec payloads) {
+		ByteBuffer buffer = ByteBuffer.wrap(block);
+		try {
+			if ((buffer.get() & 0xff) != MAGIC) {
+				throw new IllegalStateException("Not a compressed block");
+			}
+			int length = buffer.getInt();
+			if (length > buffer.remaining()) {
+				throw new IllegalStateException("Truncated compressed block (expected "
+						+ length + " bytes but found " + buffer.remaining() + ")");
+			}
+			int count = buffer.getInt();
+			byte[] records = new byte[buffer.getInt()];
+			Inflater inflater = new Inflater();
+			try {
+				inflater.setInput(block, HEADER_LENGTH, block.length - HEADER_LENGTH);
+				int size = 0;
+				while (size < records.length && !inflater.finished()) {
+					int inflated = inflater.inflate(records, size,
+							records.length - size);
+					if (inflated == 0 && inflater.needsInput()) {
+						break;
+					}
+					size += inflated;
+				}
+				if (size < records.length) {
+					throw new IllegalStateException("Truncated compressed block");
+				}
+			}
+			finally {
+				inflater.end();
+			}
+			List<Message<?>> messages = new ArrayList<>(count);
+			// Header dictionaries start again in each block
+			HeaderCodec codec = new HeaderCodec();
+			ByteBuffer input = ByteBuffer.wrap(records);
+			for (int i = 0; i < count; i++) {
+				int start = input.position();
+				input.get();
+				int size = BinaryRecords.PREFIX_LENGTH + input.getInt();
+				messages.add(BinaryRecords.decode(
+						Arrays.copyOfRange(records, start, start + size), codec, payloads));
+				input.position(start + size);
+			}
+			return messages;
+		}
+		catch (DataFormatException | BufferUnderflowException
+				| IllegalArgumentException | IndexOutOfBoundsException e) {
+			throw new IllegalStateException("Corrupt compressed block", e);
+		}
+	}
+
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.binder.file;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Metrics for a single destination that is being read or written by a
+ * {@link MessageController}. Counters and the latency histogram are updated by the
+ * background thread for the destination, and the gauges are computed on demand.
+ *
+ * @author Dave Syer
+ *
+ */
+public class DestinationMetrics {
+
+	private final String name;
+
+	private final boolean writable;
+
+	private final LongAdder messages = new LongAdder();
+
+	private final LongAdder bytes = new LongAdder();
+
+	private final LongAdder syncs = new LongAdder();
+
+	private final LatencyHistogram latency = new LatencyHistogram();
+
+	private final LongSupplier pending;
+
+	private final LongSupplier lag;
+
+	DestinationMetrics(String name, boolean writable, LongSupplier pending,
+			LongSupplier lag) {
+		this.name = name;
+		this.writable = writable;
+		this.pending = pending;
+		this.lag = lag;
+	}
+
+	/**
+	 * @return the destination name
+	 */
+	public String getName() {
+		return this.name;
+	}
+
+	/**
+	 * @return true if this is an output (messages are written to the destination),
+	 * false for an input
+	 */
+	public boolean isWritable() {
+		return this.writable;
+	}
+
+	/**
+	 * @return the number of messages written or read
+	 */
+	public long getMessages() {
+		return this.messages.sum();
+	}
+
+	/**
+	 * @return the number of bytes written or read
+	 */
+	public long getBytes() {
+		return this.bytes.sum();
+	}
+
+	/**
+	 * @return the number of times an output has forced what it wrote to the storage
+	 * device (always 0 for an input)
+	 */
+	public long getSyncs() {
+		return this.syncs.sum();
+	}
+
+	/**
+	 * @return the number of messages waiting in memory (to be written for an output, or
+	 * to be received for a polled input)
+	 */
+	public long getPending() {
+		return this.pending.getAsLong();
+	}
+
+	/**
+	 * @return the number of bytes in the destination that an input has not read yet, or
+	 * -1 if it is not known (e.g. for an output, a named pipe or segmented storage)
+	 */
+	public long getLag() {
+		return this.lag.getAsLong();
+	}
+
+	/**
+	 * @return the time taken to write and flush each batch for an output, or to hand
+	 * each message to the consumer for an input
+	 */
+	public LatencyHistogram getLatency() {
+		return this.latency;
+	}
+
+	void increment(long bytes) {
+		this.messages.increment();
+		this.bytes.add(bytes);
+	}
+
+	void increment(long messages, long bytes) {
+		this.messages.add(messages);
+		this.bytes.add(bytes);
+	}
+
+	void synced() {
+		this.syncs.increment();
+	}
+
+}
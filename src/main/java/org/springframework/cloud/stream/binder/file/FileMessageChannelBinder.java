@@ -16,11 +16,21 @@
 
 package org.springframework.cloud.stream.binder.file;
 
+import org.springframework.beans.BeanUtils;
 import org.springframework.cloud.stream.binder.AbstractBinder;
+import org.springframework.cloud.stream.binder.BinderHeaders;
 import org.springframework.cloud.stream.binder.Binding;
-import org.springframework.cloud.stream.binder.ConsumerProperties;
 import org.springframework.cloud.stream.binder.DefaultBinding;
-import org.springframework.cloud.stream.binder.ProducerProperties;
+import org.springframework.cloud.stream.binder.ExtendedConsumerProperties;
+import org.springframework.cloud.stream.binder.ExtendedProducerProperties;
+import org.springframework.cloud.stream.binder.ExtendedPropertiesBinder;
+import org.springframework.cloud.stream.binder.PartitionHandler;
+import org.springframework.cloud.stream.binder.PartitionKeyExtractorStrategy;
+import org.springframework.cloud.stream.binder.PartitionSelectorStrategy;
+import org.springframework.cloud.stream.binder.file.properties.FileConsumerProperties;
+import org.springframework.cloud.stream.binder.file.properties.FileExtendedBindingProperties;
+import org.springframework.cloud.stream.binder.file.properties.FileProducerProperties;
+import org.springframework.integration.expression.ExpressionUtils;
 import org.springframework.messaging.MessageChannel;
 import org.springframework.messaging.SubscribableChannel;
 
@@ -29,27 +39,94 @@ import org.springframework.messaging.SubscribableChannel;
  *
  * @author Dave Syer
  */
-public class FileMessageChannelBinder
-		extends AbstractBinder<MessageChannel, ConsumerProperties, ProducerProperties> {
+public class FileMessageChannelBinder extends
+		AbstractBinder<MessageChannel, ExtendedConsumerProperties<FileConsumerProperties>, ExtendedProducerProperties<FileProducerProperties>>
+		implements
+		ExtendedPropertiesBinder<MessageChannel, FileConsumerProperties, FileProducerProperties> {
 
 	private MessageController controller;
 
+	private FileExtendedBindingProperties extendedBindingProperties = new FileExtendedBindingProperties();
+
 	public FileMessageChannelBinder(MessageController controller) {
 		this.controller = controller;
 	}
 
+	public void setExtendedBindingProperties(
+			FileExtendedBindingProperties extendedBindingProperties) {
+		this.extendedBindingProperties = extendedBindingProperties;
+	}
+
+	@Override
+	public FileConsumerProperties getExtendedConsumerProperties(String channelName) {
+		return this.extendedBindingProperties.getExtendedConsumerProperties(channelName);
+	}
+
+	@Override
+	public FileProducerProperties getExtendedProducerProperties(String channelName) {
+		return this.extendedBindingProperties.getExtendedProducerProperties(channelName);
+	}
+
 	@Override
 	protected Binding<MessageChannel> doBindConsumer(String name, String group,
-			MessageChannel inputTarget, ConsumerProperties properties) {
-		controller.bind(name, group, inputTarget);
+			MessageChannel inputTarget,
+			ExtendedConsumerProperties<FileConsumerProperties> properties) {
+		if (properties.isPartitioned()) {
+			int count = properties.getInstanceCount();
+			int partitions = properties.getExtension().getPartitionCount();
+			if (partitions <= 0) {
+				partitions = count;
+			}
+			for (int partition = properties.getInstanceIndex(); partition < partitions;
+					partition += count) {
+				controller.bind(MessageController.partitionName(name, partition), group,
+						inputTarget, properties.getExtension(),
+						properties.getConcurrency());
+			}
+		}
+		else {
+			controller.bind(name, group, inputTarget, properties.getExtension(),
+					properties.getConcurrency());
+		}
 		return new DefaultBinding<MessageChannel>(name, group, inputTarget, null);
 	}
 
 	@Override
 	protected Binding<MessageChannel> doBindProducer(String name,
-			MessageChannel outboundBindTarget, ProducerProperties properties) {
-		controller.subscribe(name, (SubscribableChannel) outboundBindTarget);
+			MessageChannel outboundBindTarget,
+			ExtendedProducerProperties<FileProducerProperties> properties) {
+		if (properties.isPartitioned()) {
+			PartitionSelectorStrategy selector = instantiate(
+					properties.getPartitionSelectorClass(),
+					PartitionSelectorStrategy.class);
+			PartitionHandler handler = new PartitionHandler(
+					ExpressionUtils.createStandardEvaluationContext(getBeanFactory()),
+					properties,
+					instantiate(properties.getPartitionKeyExtractorClass(),
+							PartitionKeyExtractorStrategy.class),
+					selector != null ? selector : (key, count) -> key.hashCode());
+			controller.subscribe(name, (SubscribableChannel) outboundBindTarget,
+					properties.getExtension(), properties.getPartitionCount(),
+					message -> {
+						// The output channel usually computes the partition for us
+						Object partition = message.getHeaders()
+								.get(BinderHeaders.PARTITION_HEADER);
+						return partition instanceof Integer ? (Integer) partition
+								: handler.determinePartition(message);
+					});
+		}
+		else {
+			controller.subscribe(name, (SubscribableChannel) outboundBindTarget,
+					properties.getExtension());
+		}
 		return new DefaultBinding<MessageChannel>(name, null, outboundBindTarget, null);
 	}
 
+	private <T> T instantiate(Class<?> type, Class<T> required) {
+		if (type == null) {
+			return null;
+		}
+		return required.cast(BeanUtils.instantiateClass(type));
+	}
+
 }
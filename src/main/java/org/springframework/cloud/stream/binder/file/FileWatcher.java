@@ -0,0 +1,188 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.binder.file;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Watches files for modifications using a {@link WatchService}, so that readers that
+ * have reached the end of a file can wait for more data instead of polling. One watcher
+ * can serve any number of files, and each directory is only registered once.
+ *
+ * @author Dave Syer
+ *
+ */
+class FileWatcher implements Runnable, Closeable {
+
+	private static Log logger = LogFactory.getLog(FileWatcher.class);
+
+	private final WatchService watchService;
+
+	private final Map<Path, Signal> signals = new ConcurrentHashMap<>();
+
+	private final Map<Path, WatchKey> directories = new ConcurrentHashMap<>();
+
+	public FileWatcher() throws IOException {
+		this.watchService = FileSystems.getDefault().newWatchService();
+	}
+
+	/**
+	 * Start watching the file provided (if it isn't already being watched).
+	 *
+	 * @param file the file to watch
+	 * @return a signal that is raised every time the file is modified
+	 * @throws IOException if the parent directory cannot be watched
+	 */
+	public Signal watch(File file) throws IOException {
+		Path path = file.toPath().toAbsolutePath().normalize();
+		Path parent = path.getParent();
+		if (!this.directories.containsKey(parent)) {
+			synchronized (this.directories) {
+				if (!this.directories.containsKey(parent)) {
+					this.directories.put(parent, parent.register(this.watchService,
+							StandardWatchEventKinds.ENTRY_CREATE,
+							StandardWatchEventKinds.ENTRY_MODIFY));
+				}
+			}
+		}
+		return this.signals.computeIfAbsent(path, key -> new Signal());
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				WatchKey key = this.watchService.take();
+				Path directory = (Path) key.watchable();
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+						for (Map.Entry<Path, Signal> entry : this.signals.entrySet()) {
+							if (directory.equals(entry.getKey().getParent())) {
+								entry.getValue().raise();
+							}
+						}
+						continue;
+					}
+					Signal signal = this.signals
+							.get(directory.resolve((Path) event.context()));
+					if (signal != null) {
+						signal.raise();
+					}
+				}
+				if (!key.reset()) {
+					this.directories.remove(directory);
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		catch (ClosedWatchServiceException e) {
+			// normal shutdown
+		}
+		logger.debug("Stopped watching files");
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.watchService.close();
+		for (Signal signal : this.signals.values()) {
+			signal.raise();
+		}
+	}
+
+	/**
+	 * A version number that changes every time a file is modified. Readers take the
+	 * version <em>before</em> they look for more data, and wait for it to change if
+	 * they don't find any, so that no modifications are missed.
+	 */
+	static class Signal {
+
+		private volatile long version;
+
+		private final List<Runnable> callbacks = new ArrayList<>();
+
+		public long getVersion() {
+			return this.version;
+		}
+
+		/**
+		 * Wait for the version to move on from the value provided.
+		 *
+		 * @param version the version that was current when data was last looked for
+		 * @param timeoutMillis maximum time to wait
+		 */
+		public synchronized void await(long version, long timeoutMillis)
+				throws InterruptedException {
+			long deadline = System.currentTimeMillis() + timeoutMillis;
+			long remaining = timeoutMillis;
+			while (this.version == version && remaining > 0) {
+				wait(remaining);
+				remaining = deadline - System.currentTimeMillis();
+			}
+		}
+
+		/**
+		 * Run a callback (once) when the version moves on from the value provided,
+		 * instead of waiting for it. If it has already moved on the callback runs
+		 * straight away.
+		 *
+		 * @param version the version that was current when data was last looked for
+		 * @param callback the callback to run
+		 */
+		public void onRaise(long version, Runnable callback) {
+			synchronized (this) {
+				if (this.version == version) {
+					this.callbacks.add(callback);
+					return;
+				}
+			}
+			callback.run();
+		}
+
+		void raise() {
+			List<Runnable> callbacks;
+			synchronized (this) {
+				this.version++;
+				notifyAll();
+				callbacks = new ArrayList<>(this.callbacks);
+				this.callbacks.clear();
+			}
+			for (Runnable callback : callbacks) {
+				callback.run();
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.binder.file;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.UUID;
+
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.util.MimeType;
+
+/**
+ * Encodes message headers with their types, so that numbers, booleans, UUIDs, mime
+ * types and byte arrays survive a round trip as well as strings. Each header is a key
+ * followed by a value:
+ *
+ * <pre>
+ * key:   0 | length (2 bytes) | UTF-8 bytes         (inline)
+ *        1 | id (2 bytes) | length (2 bytes) | bytes  (define id and use it)
+ *        2 | id (2 bytes)                         (use a defined id)
+ * value: type (1 byte) | data
+ *        type | 0x20 | id (2 bytes) | data           (define id and use it)
+ *        0x40 | id (2 bytes)                       (use a defined id)
+ * </pre>
+ *
+ * A codec with a dictionary remembers the keys (and optionally the string and mime
+ * type values) it has seen, and after the first time refers to them by id. Its state
+ * therefore has to follow the stream of records: a decoder has to see every record
+ * since the encoder was last {@link #reset() reset}. If the same id is defined twice,
+ * the later definition wins, so an encoder can always start again from scratch (e.g.
+ * after a restart, or when the dictionary is full). Headers of other types are not
+ * encoded.
+ *
+ * @author Dave Syer
+ *
+ */
+class HeaderCodec {
+
+	private static final int MAX_ENTRIES = 4096;
+
+	private static final int KEY_INLINE = 0;
+
+	private static final int KEY_DEFINE = 1;
+
+	private static final int KEY_REFERENCE = 2;
+
+	private static final int VALUE_DEFINE = 0x20;
+
+	private static final int VALUE_REFERENCE = 0x40;
+
+	private static final int STRING = 1;
+
+	private static final int LONG = 2;
+
+	private static final int INTEGER = 3;
+
+	private static final int SHORT = 4;
+
+	private static final int BYTE = 5;
+
+	private static final int DOUBLE = 6;
+
+	private static final int FLOAT = 7;
+
+	private static final int BOOLEAN = 8;
+
+	private static final int UUID_VALUE = 9;
+
+	private static final int MIME_TYPE = 10;
+
+	private static final int BYTES = 11;
+
+	private final boolean keys;
+
+	private final boolean values;
+
+	private final Map<String, Integer> keyIds = new HashMap<>();
+
+	private final Map<Object, Integer> valueIds = new HashMap<>();
+
+	private final List<String> keyTable = new ArrayList<>();
+
+	private final List<Object> valueTable = new ArrayList<>();
+
+	/**
+	 * A codec with no dictionary, which writes every key and value in full.
+	 */
+	public HeaderCodec() {
+		this(false, false);
+	}
+
+	/**
+	 * @param keys true to refer to repeated keys by id
+	 * @param values true to refer to repeated string and mime type values by id
+	 */
+	public HeaderCodec(boolean keys, boolean values) {
+		this.keys = keys;
+		this.values = values;
+	}
+
+	/**
+	 * Forget all the keys and values seen so far.
+	 */
+	public void reset() {
+		this.keyIds.clear();
+		this.valueIds.clear();
+		this.keyTable.clear();
+		this.valueTable.clear();
+	}
+
+	public static boolean isSupported(String key, Object value) {
+		return !MessageHeaders.ID.equals(key) && !MessageHeaders.TIMESTAMP.equals(key)
+				&& type(value) > 0;
+	}
+
+	public void encode(MessageHeaders headers, DataOutput output) throws IOException {
+		int count = 0;
+		for (Entry<String, Object> entry : headers.entrySet()) {
+			if (isSupported(entry.getKey(), entry.getValue())) {
+				count++;
+			}
+		}
+		output.writeShort(count);
+		for (Entry<String, Object> entry : headers.entrySet()) {
+			if (isSupported(entry.getKey(), entry.getValue())) {
+				encodeKey(entry.getKey(), output);
+				encodeValue(entry.getValue(), output);
+			}
+		}
+	}
+
+	public Map<String, Object> decode(ByteBuffer buffer) {
+		int count = buffer.getShort() & 0xffff;
+		Map<String, Object> headers = new LinkedHashMap<>();
+		for (int i = 0; i < count; i++) {
+			String key = decodeKey(buffer);
+			headers.put(key, decodeValue(buffer));
+		}
+		return headers;
+	}
+
+	private void encodeKey(String key, DataOutput output) throws IOException {
+		Integer id = this.keys ? this.keyIds.get(key) : null;
+		if (id != null) {
+			output.writeByte(KEY_REFERENCE);
+			output.writeShort(id);
+			return;
+		}
+		if (this.keys && this.keyIds.size() < MAX_ENTRIES) {
+			id = this.keyIds.size();
+			this.keyIds.put(key, id);
+			output.writeByte(KEY_DEFINE);
+			output.writeShort(id);
+		}
+		else {
+			output.writeByte(KEY_INLINE);
+		}
+		byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+		output.writeShort(bytes.length);
+		output.write(bytes);
+	}
+
+	private String decodeKey(ByteBuffer buffer) {
+		int tag = buffer.get();
+		if (tag == KEY_REFERENCE) {
+			return lookup(this.keyTable, buffer.getShort() & 0xffff, "key");
+		}
+		int id = tag == KEY_DEFINE ? buffer.getShort() & 0xffff : -1;
+		String key = string(buffer, buffer.getShort() & 0xffff);
+		if (id >= 0) {
+			define(this.keyTable, id, key);
+		}
+		return key;
+	}
+
+	private void encodeValue(Object value, DataOutput output) throws IOException {
+		int type = type(value);
+		if (this.values && (type == STRING || type == MIME_TYPE)) {
+			Integer id = this.valueIds.get(value);
+			if (id != null) {
+				output.writeByte(VALUE_REFERENCE);
+				output.writeShort(id);
+				return;
+			}
+			if (this.valueIds.size() < MAX_ENTRIES) {
+				id = this.valueIds.size();
+				this.valueIds.put(value, id);
+				output.writeByte(type | VALUE_DEFINE);
+				output.writeShort(id);
+				encodeData(type, value, output);
+				return;
+			}
+		}
+		output.writeByte(type);
+		encodeData(type, value, output);
+	}
+
+	private Object decodeValue(ByteBuffer buffer) {
+		int tag = buffer.get();
+		if (tag == VALUE_REFERENCE) {
+			return lookup(this.valueTable, buffer.getShort() & 0xffff, "value");
+		}
+		int id = (tag & VALUE_DEFINE) != 0 ? buffer.getShort() & 0xffff : -1;
+		Object value = decodeData(tag & ~VALUE_DEFINE, buffer);
+		if (id >= 0) {
+			define(this.valueTable, id, value);
+		}
+		return value;
+	}
+
+	private static int type(Object value) {
+		if (value instanceof String) {
+			return STRING;
+		}
+		if (value instanceof Long) {
+			return LONG;
+		}
+		if (value instanceof Integer) {
+			return INTEGER;
+		}
+		if (value instanceof Short) {
+			return SHORT;
+		}
+		if (value instanceof Byte) {
+			return BYTE;
+		}
+		if (value instanceof Double) {
+			return DOUBLE;
+		}
+		if (value instanceof Float) {
+			return FLOAT;
+		}
+		if (value instanceof Boolean) {
+			return BOOLEAN;
+		}
+		if (value instanceof UUID) {
+			return UUID_VALUE;
+		}
+		if (value instanceof MimeType) {
+			return MIME_TYPE;
+		}
+		if (value instanceof byte[]) {
+			return BYTES;
+		}
+		return 0;
+	}
+
+	private static void encodeData(int type, Object value, DataOutput output)
+			throws IOException {
+		switch (type) {
+		case STRING:
+			byte[] bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+			output.writeInt(bytes.length);
+			output.write(bytes);
+			break;
+		case LONG:
+			output.writeLong((Long) value);
+			break;
+		case INTEGER:
+			output.writeInt((Integer) value);
+			break;
+		case SHORT:
+			output.writeShort((Short) value);
+			break;
+		case BYTE:
+			output.writeByte((Byte) value);
+			break;
+		case DOUBLE:
+			output.writeDouble((Double) value);
+			break;
+		case FLOAT:
+			output.writeFloat((Float) value);
+			break;
+		case BOOLEAN:
+			output.writeBoolean((Boolean) value);
+			break;
+		case UUID_VALUE:
+			output.writeLong(((UUID) value).getMostSignificantBits());
+			output.writeLong(((UUID) value).getLeastSignificantBits());
+			break;
+		case MIME_TYPE:
+			byte[] mime = value.toString().getBytes(StandardCharsets.UTF_8);
+			output.writeShort(mime.length);
+			output.write(mime);
+			break;
+		default:
+			byte[] raw = (byte[]) value;
+			output.writeInt(raw.length);
+			output.write(raw);
+		}
+	}
+
+	private static Object decodeData(int type, ByteBuffer buffer) {
+		switch (type) {
+		case STRING:
+			return string(buffer, buffer.getInt());
+		case LONG:
+			return buffer.getLong();
+		case INTEGER:
+			return buffer.getInt();
+		case SHORT:
+			return buffer.getShort();
+		case BYTE:
+			return buffer.get();
+		case DOUBLE:
+			return buffer.getDouble();
+		case FLOAT:
+			return buffer.getFloat();
+		case BOOLEAN:
+			return buffer.get() != 0;
+		case UUID_VALUE:
+			return new UUID(buffer.getLong(), buffer.getLong());
+		case MIME_TYPE:
+			return MimeType.valueOf(string(buffer, buffer.getShort() & 0xffff));
+		case BYTES:
+			byte[] bytes = new byte[buffer.getInt()];
+			buffer.get(bytes);
+			return bytes;
+		default:
+			throw new IllegalStateException("Unknown header type: " + type);
+		}
+	}
+
+	private static <T> void define(List<T> table, int id, T value) {
+		while (table.size() <= id) {
+			table.add(null);
+		}
+		table.set(id, value);
+	}
+
+	private static <T> T lookup(List<T> table, int id, String kind) {
+		T value = id < table.size() ? table.get(id) : null;
+		if (value == null) {
+			throw new IllegalStateException("Unknown header " + kind + " id: " + id);
+		}
+		return value;
+	}
+
+	static String string(ByteBuffer buffer, int length) {
+		String result = new String(buffer.array(), buffer.arrayOffset() + buffer.position(),
+				length, StandardCharsets.UTF_8);
+		buffer.position(buffer.position() + length);
+		return result;
+	}
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.binder.file;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies with one bucket per power of 2 nanoseconds. Recording is
+ * lock free and cheap enough to do for every message, at the cost of percentiles only
+ * being accurate to within a factor of 2.
+ *
+ * @author Dave Syer
+ *
+ */
+public class LatencyHistogram {
+
+	private final AtomicLongArray buckets = new AtomicLongArray(64);
+
+	private final LongAdder count = new LongAdder();
+
+	private final LongAdder total = new LongAdder();
+
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		this.buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(nanos | 1));
+		this.count.increment();
+		this.total.add(nanos);
+		this.max.accumulateAndGet(nanos, Math::max);
+	}
+
+	public long getCount() {
+		return this.count.sum();
+	}
+
+	/**
+	 * @return the mean latency in nanoseconds (0 if nothing has been recorded)
+	 */
+	public double getMean() {
+		long count = this.count.sum();
+		return count == 0 ? 0 : (double) this.total.sum() / count;
+	}
+
+	/**
+	 * @return the maximum latency in nanoseconds
+	 */
+	public long getMax() {
+		return this.max.get();
+	}
+
+	/**
+	 * @param percentile the percentile to compute (between 0 and 100)
+	 * @return an upper bound for the latency in nanoseconds at that percentile
+	 */
+	public long getPercentile(double percentile) {
+		long count = 0;
+		long[] values = new long[this.buckets.length()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = this.buckets.get(i);
+			count += values[i];
+		}
+		long threshold = (long) Math.ceil(count * percentile / 100);
+		long sum = 0;
+		for (int i = 0; i < values.length; i++) {
+			sum += values[i];
+			if (sum >= threshold && sum > 0) {
+				return Math.min(i < 62 ? (2L << i) - 1 : Long.MAX_VALUE, getMax());
+			}
+		}
+		return 0;
+	}
+
+}
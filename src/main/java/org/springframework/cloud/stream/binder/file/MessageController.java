@@ -16,33 +16,58 @@
 
 package org.springframework.cloud.stream.binder.file;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.SyncFailedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
-import java.util.LinkedHashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.ToIntFunction;
+import java.util.zip.Deflater;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.reactivestreams.Publisher;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Mono;
 
+import org.springframework.cloud.stream.binder.file.properties.FileConsumerProperties;
+import org.springframework.cloud.stream.binder.file.properties.FileProducerProperties;
+import org.springframework.integration.codec.Codec;
 import org.springframework.messaging.Message;
 import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageDeliveryException;
 import org.springframework.messaging.MessageHeaders;
 import org.springframework.messaging.SubscribableChannel;
-import org.springframework.messaging.support.MessageBuilder;
-import org.springframework.util.StreamUtils;
+import org.springframework.util.Assert;
+import org.springframework.util.ErrorHandler;
+import org.springframework.util.StringUtils;
 
 /**
  * @author Dave Syer
@@ -52,18 +77,101 @@ public class MessageController implements Closeable {
 
 	private static Log logger = LogFactory.getLog(MessageController.class);
 
+	private static final long IDLE_MILLIS = 100L;
+
+	private static final long CLOSE_TIMEOUT_MILLIS = 1000L;
+
+	private static final int SPIN_TRIES = 100;
+
+	private static final long MIN_PARK_NANOS = 1000L;
+
+	private static final long MAX_RETRY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private static final int DRAIN_BATCHES = 4;
+
+	private static final long FILE_CHECK_MILLIS = 100L;
+
+	/**
+	 * The largest write to a named pipe that is guaranteed not to be interleaved with
+	 * writes from other processes (on Linux: POSIX only promises 512).
+	 */
+	private static final int PIPE_BUF = 4096;
+
+	/**
+	 * File locks are held on behalf of the whole JVM, so producers in this process have
+	 * to take turns before they lock a file.
+	 */
+	private static final Map<String, Object> appending = new ConcurrentHashMap<>();
+
 	private String prefix;
 
 	private final AtomicBoolean running = new AtomicBoolean(false);
 
-	private final Map<String, FileAdapter> inputs = new HashMap<>();
+	private final Map<String, FileAdapter> inputs = new ConcurrentHashMap<>();
+
+	private final Map<String, FileAdapter> outputs = new ConcurrentHashMap<>();
 
-	private final Map<String, FileAdapter> outputs = new HashMap<>();
+	private final Map<String, FileProducerProperties> producers = new ConcurrentHashMap<>();
 
 	private ExecutorService executor = Executors.newCachedThreadPool();
 
+	private ScheduledExecutorService scheduler = Executors
+			.newSingleThreadScheduledExecutor();
+
+	private final List<OffsetCheckpoint> checkpoints = new CopyOnWriteArrayList<>();
+
 	private long timeoutMillis;
 
+	private WriteDurability durability = WriteDurability.FLUSH_PER_BATCH;
+
+	private int batchSize = 1000;
+
+	private int fsyncMessages = 1000;
+
+	private long fsyncIntervalMillis = 1000;
+
+	private Storage storage = Storage.PLAIN;
+
+	private int segmentSize = 64 * 1024 * 1024;
+
+	private long commitIntervalMillis = 1000;
+
+	private long segmentRollMillis;
+
+	private long retentionBytes;
+
+	private long retentionMillis;
+
+	private RetentionAction retentionAction = RetentionAction.DELETE;
+
+	private long retentionCheckMillis = 60000;
+
+	private boolean watch = true;
+
+	private long watchTimeoutMillis = 1000;
+
+	private FileWatcher watcher;
+
+	private int ioThreads;
+
+	private long idleTimeoutMillis;
+
+	private int maxOutputs;
+
+	private int indexIntervalBytes = 64 * 1024;
+
+	private PayloadCodec payloads;
+
+	private String[] trustedPayloadTypes = new String[0];
+
+	private boolean loopback;
+
+	private ErrorHandler errorHandler;
+
+	private boolean evicting;
+
+	private ExecutorService io;
+
 	public MessageController(String prefix) {
 		this.prefix = prefix;
 		new File(prefix).mkdirs();
@@ -72,19 +180,91 @@ public class MessageController implements Closeable {
 	@Override
 	public void close() throws IOException {
 		running.set(false);
+		ExecutorService io;
+		synchronized (this) {
+			io = this.io;
+		}
+		if (io != null) {
+			// Destinations on the shared threads need a turn to finish writing and close
+			for (FileAdapter adapter : inputs.values()) {
+				adapter.wake();
+			}
+			for (FileAdapter adapter : outputs.values()) {
+				adapter.wake();
+			}
+			io.shutdown();
+		}
 		executor.shutdownNow();
+		scheduler.shutdownNow();
+		try {
+			// Let readers record the offsets of messages they have just dispatched
+			executor.awaitTermination(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+			if (io != null) {
+				io.awaitTermination(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		commitOffsets();
+		synchronized (this) {
+			if (watcher != null) {
+				watcher.close();
+			}
+		}
 	}
 
 	public void bind(String name, String group, MessageChannel inputTarget) {
+		bind(name, group, inputTarget, new FileConsumerProperties());
+	}
+
+	public void bind(String name, String group, MessageChannel inputTarget,
+			FileConsumerProperties properties) {
+		bind(name, group, inputTarget, properties, 1);
+	}
+
+	/**
+	 * Bind a destination to a channel, sending messages to it from several threads if
+	 * the concurrency is more than 1, so that a slow handler does not hold up reading
+	 * the destination.
+	 *
+	 * @param name the destination name
+	 * @param group the consumer group (may be null)
+	 * @param inputTarget the channel to send messages to
+	 * @param properties the consumer properties
+	 * @param concurrency the number of threads handling messages
+	 */
+	public void bind(String name, String group, MessageChannel inputTarget,
+			FileConsumerProperties properties, int concurrency) {
 		running.set(true);
-		inputs.computeIfAbsent(name, key -> new FileAdapter(key)).target = inputTarget;
+		FileAdapter existing = inputs.get(name);
+		MessageChannel previous = existing == null ? null : existing.target;
+		MessageChannel target;
+		if (previous instanceof OrderedDispatcher && ((OrderedDispatcher) previous)
+				.isFor(inputTarget, concurrency, properties.getOrderingHeader())) {
+			// Bound again to the same channel, so the same workers will do
+			target = previous;
+		}
+		else if (concurrency > 1) {
+			target = new OrderedDispatcher(inputTarget, concurrency,
+					properties.getOrderingHeader(), properties.getBufferSize(),
+					executor, errorHandler);
+		}
+		else {
+			target = inputTarget;
+		}
+		// Pass the target in so nothing is read before it is there to receive it
+		inputs.computeIfAbsent(name,
+				key -> new FileAdapter(key, group, properties, target)).target = target;
+		if (previous instanceof OrderedDispatcher && previous != target) {
+			// Otherwise its workers would wait for messages forever
+			((OrderedDispatcher) previous).stop();
+		}
 	}
 
 	public Message<?> receive(String name, long timeout, TimeUnit unit) {
-		running.set(true);
 		try {
-			return inputs.computeIfAbsent(name, key -> new FileAdapter(key)).exchange
-					.poll(timeout, unit);
+			return polled(name).exchange.poll(timeout, unit);
 		}
 		catch (InterruptedException e) {
 			running.set(false);
@@ -93,60 +273,611 @@ public class MessageController implements Closeable {
 		}
 	}
 
+	/**
+	 * Receive several messages from a destination in one call. Waits up to the timeout
+	 * for the first message, and then takes as many of the others that have already
+	 * been read ahead (up to the consumer buffer size) as it can without waiting, so a
+	 * consumer that handles messages in bulk pays for one handoff per batch instead of
+	 * one per message.
+	 *
+	 * @param name the destination name
+	 * @param maxMessages the maximum number of messages to return
+	 * @param timeout the maximum time to wait for the first message
+	 * @param unit the unit of the timeout
+	 * @return the messages received (empty if none arrived before the timeout)
+	 */
+	public List<Message<?>> receiveBatch(String name, int maxMessages, long timeout,
+			TimeUnit unit) {
+		Assert.isTrue(maxMessages > 0, "maxMessages must be greater than 0");
+		FileAdapter adapter = polled(name);
+		List<Message<?>> messages = new ArrayList<>(
+				Math.min(maxMessages, adapter.exchange.capacity()));
+		try {
+			boolean backlogged = adapter.exchange.isFull();
+			Message<?> first = adapter.exchange.poll(timeout, unit);
+			if (first != null) {
+				messages.add(first);
+				adapter.exchange.drainTo(messages, maxMessages - 1);
+				if (backlogged) {
+					// A reader on the shared threads does not read ahead again until
+					// it is woken up
+					adapter.wake();
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			running.set(false);
+			Thread.currentThread().interrupt();
+		}
+		return messages;
+	}
+
+	private FileAdapter polled(String name) {
+		running.set(true);
+		return inputs.computeIfAbsent(name,
+				key -> new FileAdapter(key, null, new FileConsumerProperties(), null));
+	}
+
+	/**
+	 * Read messages from a destination as they are requested. Each subscriber reads the
+	 * destination from the beginning with its own reader, which waits for demand
+	 * before reading each message, so a slow subscriber never causes messages to be
+	 * buffered in memory.
+	 *
+	 * @param name the destination name
+	 * @return the messages in the destination
+	 */
+	public Flux<Message<?>> receive(String name) {
+		return receive(name, new FileConsumerProperties());
+	}
+
+	/**
+	 * Read messages from a destination as they are requested, starting from the
+	 * position in the properties provided (e.g. to replay the messages written since a
+	 * given time).
+	 *
+	 * @param name the destination name
+	 * @param properties the consumer properties
+	 * @return the messages in the destination
+	 * @see #receive(String)
+	 */
+	public Flux<Message<?>> receive(String name, FileConsumerProperties properties) {
+		return Flux.create(sink -> {
+			running.set(true);
+			new FileAdapter(name, properties, sink);
+		});
+	}
+
 	public void subscribe(String name, SubscribableChannel outboundBindTarget) {
+		subscribe(name, outboundBindTarget, new FileProducerProperties());
+	}
+
+	public void subscribe(String name, SubscribableChannel outboundBindTarget,
+			FileProducerProperties properties) {
+		producers.put(name, properties);
 		outboundBindTarget.subscribe(message -> {
 			send(name, message);
 		});
 	}
 
+	/**
+	 * Subscribe to a channel and send each message to one of several partitions of a
+	 * destination (<code>name-0</code>, <code>name-1</code>, etc.).
+	 *
+	 * @param name the destination name
+	 * @param outboundBindTarget the channel to subscribe to
+	 * @param properties the producer properties for all partitions
+	 * @param partitionCount the number of partitions
+	 * @param partitioner a function that selects a partition for a message
+	 */
+	public void subscribe(String name, SubscribableChannel outboundBindTarget,
+			FileProducerProperties properties, int partitionCount,
+			ToIntFunction<Message<?>> partitioner) {
+		for (int partition = 0; partition < partitionCount; partition++) {
+			producers.put(partitionName(name, partition), properties);
+		}
+		outboundBindTarget.subscribe(message -> {
+			send(partitionName(name, partitioner.applyAsInt(message)), message);
+		});
+	}
+
+	/**
+	 * @param name the destination name
+	 * @param partition the partition index
+	 * @return the name of the destination for that partition
+	 */
+	public static String partitionName(String name, int partition) {
+		return name + "-" + partition;
+	}
+
 	public void send(String name, Message<?> message) {
 		running.set(true);
 		try {
-			outputs.computeIfAbsent(name, key -> new FileAdapter(key, true)).exchange
-					.put(message);
+			sendTo(name, message);
+		}
+		catch (InterruptedException e) {
+			running.set(false);
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Send a message to a destination without waiting for it to be written. If the
+	 * write buffer is full this still waits for space (or fails, or drops the message)
+	 * depending on the overflow policy of the destination.
+	 *
+	 * @param name the destination name
+	 * @param message the message to send
+	 * @return a future that completes when the message has been written and flushed,
+	 * or synced to disk if the durability setting requires it, or fails with the error
+	 * if it could not be written
+	 */
+	public CompletableFuture<Void> sendAsync(String name, Message<?> message) {
+		CompletableFuture<Void> future = new CompletableFuture<>();
+		running.set(true);
+		try {
+			sendTo(name, new PendingMessage(message, future));
 		}
 		catch (InterruptedException e) {
 			running.set(false);
 			Thread.currentThread().interrupt();
+			future.completeExceptionally(e);
+		}
+		catch (RuntimeException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	/**
+	 * Send messages to a destination, requesting them from upstream in batches so that
+	 * bursts are written together. At most one batch of messages is waiting to be
+	 * written at a time.
+	 *
+	 * @param name the destination name
+	 * @param messages the messages to send
+	 * @return a publisher that completes when all the messages have been written (in
+	 * the same sense as {@link #sendAsync(String, Message)}), or fails with the first
+	 * error
+	 */
+	public Mono<Void> send(String name, Publisher<Message<?>> messages) {
+		return Flux.from(messages)
+				.flatMap(message -> Mono.fromFuture(sendAsync(name, message)), batchSize)
+				.then();
+	}
+
+	private void sendTo(String name, Message<?> message) throws InterruptedException {
+		while (!output(name).send(message)) {
+			// It was evicted just now, so try again with a new one
+		}
+	}
+
+	private FileAdapter output(String name) {
+		FileAdapter adapter = outputs.get(name);
+		if (adapter != null) {
+			return adapter;
+		}
+		adapter = outputs.computeIfAbsent(name, key -> new FileAdapter(key,
+				producers.getOrDefault(key, new FileProducerProperties())));
+		if (maxOutputs > 0 && outputs.size() > maxOutputs) {
+			evictLeastRecentlyUsed();
+		}
+		if (idleTimeoutMillis > 0) {
+			startEviction();
+		}
+		return adapter;
+	}
+
+	private synchronized void startEviction() {
+		if (!evicting) {
+			long interval = Math.max(idleTimeoutMillis / 2, 1);
+			scheduler.scheduleWithFixedDelay(this::evictIdle, interval, interval,
+					TimeUnit.MILLISECONDS);
+			evicting = true;
+		}
+	}
+
+	/**
+	 * Close the producers that have not been sent anything for longer than the idle
+	 * timeout (and have nothing left to write).
+	 */
+	private void evictIdle() {
+		long cutoff = System.currentTimeMillis() - idleTimeoutMillis;
+		for (Map.Entry<String, FileAdapter> entry : outputs.entrySet()) {
+			FileAdapter adapter = entry.getValue();
+			if (adapter.isEvictable() && adapter.lastUsed < cutoff
+					&& adapter.exchange.isEmpty()) {
+				evict(entry.getKey(), adapter);
+			}
+		}
+	}
+
+	/**
+	 * Close the producers that were sent something least recently, until there are no
+	 * more than the maximum.
+	 */
+	private void evictLeastRecentlyUsed() {
+		while (outputs.size() > maxOutputs) {
+			String oldest = null;
+			FileAdapter candidate = null;
+			for (Map.Entry<String, FileAdapter> entry : outputs.entrySet()) {
+				FileAdapter adapter = entry.getValue();
+				if (adapter.isEvictable()
+						&& (candidate == null || adapter.lastUsed < candidate.lastUsed)) {
+					oldest = entry.getKey();
+					candidate = adapter;
+				}
+			}
+			if (candidate == null) {
+				return;
+			}
+			evict(oldest, candidate);
+		}
+	}
+
+	private void evict(String name, FileAdapter adapter) {
+		if (outputs.remove(name, adapter)) {
+			logger.debug("Evicting: " + adapter.file);
+			adapter.evict();
+		}
+	}
+
+	/**
+	 * @param name the destination name
+	 * @return the number of messages that have been sent to the destination but not yet
+	 * written
+	 */
+	public int getPending(String name) {
+		FileAdapter adapter = outputs.get(name);
+		return adapter == null ? 0 : adapter.exchange.size();
+	}
+
+	/**
+	 * @return metrics for all the destinations that are being read (by a bound or
+	 * polled consumer) or written
+	 */
+	public List<DestinationMetrics> getMetrics() {
+		List<DestinationMetrics> metrics = new ArrayList<>();
+		for (FileAdapter adapter : inputs.values()) {
+			metrics.add(adapter.metrics);
+		}
+		for (FileAdapter adapter : outputs.values()) {
+			metrics.add(adapter.metrics);
+		}
+		return metrics;
+	}
+
+	/**
+	 * Destinations are bound (or sent to) without waiting for their files to exist, and
+	 * start being read or written when they appear, so this is the way to find out when
+	 * they are all available.
+	 *
+	 * @return a future that completes when all the destinations bound or sent to so far
+	 * are available, or fails if any of them timed out
+	 */
+	public CompletableFuture<Void> ready() {
+		List<CompletableFuture<Void>> futures = new ArrayList<>();
+		for (FileAdapter adapter : inputs.values()) {
+			futures.add(adapter.ready);
+		}
+		for (FileAdapter adapter : outputs.values()) {
+			futures.add(adapter.ready);
+		}
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+	}
+
+	/**
+	 * @return true if all the destinations bound or sent to so far are available
+	 */
+	public boolean isReady() {
+		return getUnavailable().isEmpty();
+	}
+
+	/**
+	 * @return the names of the destinations that are not available yet (or timed out)
+	 * with the reason why
+	 */
+	public Map<String, String> getUnavailable() {
+		Map<String, String> result = new TreeMap<>();
+		for (FileAdapter adapter : inputs.values()) {
+			adapter.collectUnavailable(result);
+		}
+		for (FileAdapter adapter : outputs.values()) {
+			adapter.collectUnavailable(result);
+		}
+		return result;
+	}
+
+	private synchronized void register(OffsetCheckpoint checkpoint) {
+		if (checkpoints.isEmpty()) {
+			scheduler.scheduleWithFixedDelay(this::commitOffsets, commitIntervalMillis,
+					commitIntervalMillis, TimeUnit.MILLISECONDS);
+		}
+		checkpoints.add(checkpoint);
+	}
+
+	private void commitOffsets() {
+		for (OffsetCheckpoint checkpoint : checkpoints) {
+			try {
+				checkpoint.commit();
+			}
+			catch (Exception e) {
+				logger.error("Failed to commit offset: " + checkpoint.getFile(), e);
+			}
+		}
+	}
+
+	/**
+	 * @return the shared I/O threads, or null if each destination has a thread of its
+	 * own
+	 */
+	private synchronized ExecutorService io() {
+		if (ioThreads <= 0) {
+			return null;
+		}
+		if (io == null) {
+			io = Executors.newFixedThreadPool(ioThreads);
+		}
+		return io;
+	}
+
+	/**
+	 * @return a signal that is raised when the file is modified, or null if the file
+	 * cannot be watched (in which case the caller should poll)
+	 */
+	private synchronized FileWatcher.Signal watch(File file) {
+		if (!watch) {
+			return null;
+		}
+		try {
+			if (watcher == null) {
+				watcher = new FileWatcher();
+				executor.submit(watcher);
+			}
+			return watcher.watch(file);
+		}
+		catch (IOException | UnsupportedOperationException e) {
+			logger.info("Cannot watch " + file + " (falling back to polling): " + e);
+			return null;
 		}
 	}
 
 	class FileAdapter {
 		private File file;
-		private final SynchronousQueue<Message<?>> exchange = new SynchronousQueue<>();
-		private MessageChannel target;
+		private final SegmentedLog log;
+		private OffsetCheckpoint checkpoint;
+		private FileWatcher.Signal signal;
+		private long signalTimeoutMillis;
+		private byte[] unread;
+		private long unreadOffset;
+		private long resumeAt = -1L;
+		private int failures;
+		private volatile Exception failure;
+		private final WaitStrategy waitStrategy;
+		private final long waitNanos;
+		private int idle = 0;
+		private final RingBuffer<Message<?>> exchange;
+		private final OverflowPolicy overflowPolicy;
+		private final RecordFormat format;
+		private final Deflater deflater;
+		private final int blockSize;
+		private final HeaderCodec headers;
+		private final PayloadCodec payloadCodec;
+		private final ByteArrayOutputStream block = new ByteArrayOutputStream();
+		private int blockCount = 0;
+		private final List<Message<?>> blockMessages = new ArrayList<>();
+		private final List<CompletableFuture<Void>> unsettled = new ArrayList<>();
+		private final List<Message<?>> batch = new ArrayList<>();
+		private FileAdapter local;
+		private final List<Looped> looping = new ArrayList<>();
+		private final Queue<Looped> looped = new ConcurrentLinkedQueue<>();
+		private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(8192);
+		private final StringBuilder text = new StringBuilder();
+		private RecordReader reader;
+		private SegmentedLog.Reader segments;
+		private final String name;
+		private final boolean writable;
+		private final boolean multipleProducers;
+		private boolean regular;
+		private final CompletableFuture<Void> ready = new CompletableFuture<>();
+		private volatile ExecutorService io;
+		private volatile long lastUsed = System.currentTimeMillis();
+		private volatile boolean evicted;
+		private final AtomicInteger senders = new AtomicInteger();
+		private ScheduledFuture<?> retention;
+		private OffsetIndex index;
+		private long sequence = -1;
+		private long written;
+		private long indexed;
+		private boolean indexNext;
+		private final List<OffsetIndex.Entry> unindexed = new ArrayList<>();
+		private long skip;
+		private long replayTo = -1L;
+		private final StartPosition startPosition;
+		private final long startOffset;
+		private final long startTimestamp;
+		private final Runnable task;
+		private final AtomicBoolean scheduled = new AtomicBoolean();
+		private final AtomicBoolean watching = new AtomicBoolean();
+
+		private final AtomicBoolean retaining = new AtomicBoolean();
+		private final DestinationMetrics metrics;
+		private volatile long position = -1;
+		private volatile MessageChannel target;
+		private final FluxSink<Message<?>> sink;
+		private final Object demand = new Object();
+		private volatile boolean closed;
+		private FileOutputStream stream;
+		private FileInputStream counter;
+		private SegmentedLog.Appender appender;
+		private boolean syncable = true;
+		private int unsynced = 0;
+		private long lastSync = System.currentTimeMillis();
 
-		public FileAdapter(String name) {
-			this(name, false);
+		/**
+		 * A reader that sends messages to the target (or buffers them for polling if it
+		 * is null).
+		 */
+		public FileAdapter(String name, String group, FileConsumerProperties properties,
+				MessageChannel target) {
+			this(name, group, properties, null, null, target);
 		}
 
-		public FileAdapter(String name, boolean writable) {
+		public FileAdapter(String name, FileProducerProperties properties) {
+			this(name, null, new FileConsumerProperties(), properties, null, null);
+		}
+
+		/**
+		 * A reader that only reads as many messages as the sink has requested.
+		 */
+		public FileAdapter(String name, FileConsumerProperties properties,
+				FluxSink<Message<?>> sink) {
+			this(name, null, properties, null, sink, null);
+		}
+
+		private FileAdapter(String name, String group, FileConsumerProperties consumer,
+				FileProducerProperties producer, FluxSink<Message<?>> sink,
+				MessageChannel target) {
+			this.name = name;
+			this.writable = producer != null;
+			this.sink = sink;
+			this.target = target;
+			this.task = writable ? this::drain : this::step;
+			if (sink != null) {
+				sink.onRequest(requested -> {
+					synchronized (this.demand) {
+						this.demand.notifyAll();
+					}
+				});
+				sink.onDispose(() -> this.closed = true);
+			}
+			this.waitStrategy = consumer.getWaitStrategy();
+			this.startPosition = consumer.getStartPosition();
+			this.startOffset = consumer.getStartOffset();
+			this.startTimestamp = consumer.getStartTimestamp();
+			this.waitNanos = TimeUnit.MILLISECONDS.toNanos(consumer.getWaitMillis());
+			this.format = writable ? producer.getFormat() : RecordFormat.TEXT;
+			this.deflater = format == RecordFormat.COMPRESSED
+					? new Deflater(producer.getCompressionLevel())
+					: null;
+			this.blockSize = writable ? producer.getBlockSize() : 0;
+			this.payloadCodec = writable && producer.isUseCodec() ? payloads : null;
+			this.multipleProducers = writable && producer.isMultipleProducers()
+					&& storage != Storage.SEGMENTED;
+			// Readers learn the dictionary from the records they read
+			this.headers = writable
+					? new HeaderCodec(true, producer.isHeaderValueDictionary())
+					: new HeaderCodec();
+			if (writable) {
+				this.overflowPolicy = producer.getOverflowPolicy();
+				this.exchange = new RingBuffer<>(producer.getBufferSize(),
+						overflowPolicy);
+			}
+			else {
+				// Don't drop messages that have been read from the file
+				this.overflowPolicy = OverflowPolicy.BLOCK;
+				this.exchange = new RingBuffer<>(consumer.getBufferSize(),
+						overflowPolicy);
+			}
 			this.file = new File(prefix + "/" + name);
-			int counter = 0;
-			while (!this.file.exists() && counter++ < timeoutMillis/100) {
-				if (logger.isInfoEnabled() && counter == 1) {
-					logger.info("Waiting for: " + file);
+			if (writable && producer.isMultipleProducers() && !multipleProducers) {
+				logger.warn("Multiple producers are not supported with segmented storage: "
+						+ file);
+			}
+			this.metrics = new DestinationMetrics(name, writable, exchange::size,
+					this::lag);
+			this.log = storage == Storage.SEGMENTED ? new SegmentedLog(file, segmentSize)
+					: null;
+			if (this.log != null) {
+				this.log.setRollMillis(segmentRollMillis);
+				if (writable) {
+					this.file.mkdirs();
+					if (retentionBytes > 0 || retentionMillis > 0) {
+						this.retention = scheduler.scheduleWithFixedDelay(
+								this::triggerRetention, retentionCheckMillis,
+								retentionCheckMillis, TimeUnit.MILLISECONDS);
+					}
 				}
-				try {
-					Thread.sleep(100L);
+			}
+			if (!file.exists() && timeoutMillis > 0) {
+				logger.info("Waiting for: " + file);
+			}
+			await(name, group, System.currentTimeMillis() + timeoutMillis);
+		}
+
+		/**
+		 * Start reading or writing the file if it exists, or check again later (without
+		 * blocking the caller) until the timeout.
+		 */
+		private void await(String name, String group, long deadline) {
+			try {
+				if (file.exists() || timeoutMillis <= 0) {
+					start(group);
 				}
-				catch (InterruptedException e) {
-					Thread.currentThread().interrupt();
-					throw new IllegalStateException("Cannot find file: " + file, e);
+				else if (System.currentTimeMillis() >= deadline) {
+					unavailable(
+							new IllegalStateException("Timed out waiting for: " + file));
+				}
+				else if (isRunning()) {
+					scheduler.schedule(() -> await(name, group, deadline),
+							FILE_CHECK_MILLIS, TimeUnit.MILLISECONDS);
 				}
 			}
-			if (!file.exists() && timeoutMillis>0) {
-				throw new IllegalStateException("Timed out waiting for: " + file);
+			catch (RejectedExecutionException e) {
+				// Shutting down
+			}
+			catch (RuntimeException e) {
+				logger.error("Failed to start: " + file, e);
+				unavailable(e);
+			}
+		}
+
+		private void start(String group) {
+			// Reactive readers wait for demand, and named pipes block when they are
+			// opened and read, so they keep a thread to themselves
+			boolean seekable = log != null || file.isFile()
+					|| writable && !file.exists();
+			ExecutorService shared = sink == null && seekable ? io() : null;
+			if (seekable && (indexIntervalBytes > 0 || !writable)) {
+				this.index = new OffsetIndex(
+						new File(prefix + "/." + name + ".index"));
+			}
+			if (!writable && StringUtils.hasText(group)
+					&& (log != null || file.isFile())) {
+				this.checkpoint = new OffsetCheckpoint(
+						new File(prefix + "/." + name + "." + group + ".offset"));
+				register(this.checkpoint);
+			}
+			if (!writable && log == null && waitStrategy == WaitStrategy.WATCH) {
+				// Memory mapped writes to segments do not trigger watch events
+				this.signal = watch(file);
+				this.signalTimeoutMillis = watchTimeoutMillis;
+			}
+			if (!writable && loopback && signal == null) {
+				// Only raised by a local producer when it hands something over
+				this.signal = new FileWatcher.Signal();
+				this.signalTimeoutMillis = TimeUnit.NANOSECONDS.toMillis(waitNanos);
 			}
 			logger.debug("Starting background processing for: " + file + ", writable="
 					+ writable);
-			if (!writable) {
+			if (shared != null) {
+				this.io = shared;
+				// Including any messages that were sent while waiting for the file
+				wake();
+			}
+			else if (!writable) {
 				executor.submit(() -> {
 					try {
 						listen();
+						if (sink != null) {
+							sink.complete();
+						}
 					}
-					catch (IOException e) {
+					catch (Exception e) {
 						logger.error("Failed to read: " + file, e);
+						if (sink != null) {
+							sink.error(e);
+						}
 					}
 				});
 			}
@@ -155,172 +886,1517 @@ public class MessageController implements Closeable {
 					try {
 						write();
 					}
-					catch (IOException e) {
+					catch (Exception e) {
 						logger.error("Failed to write: " + file, e);
 					}
 				});
 			}
+			ready.complete(null);
+		}
+
+		private void collectUnavailable(Map<String, String> result) {
+			if (!ready.isDone()) {
+				result.put(name, "Waiting for: " + file);
+			}
+			else if (ready.isCompletedExceptionally()) {
+				try {
+					ready.join();
+				}
+				catch (CompletionException e) {
+					result.put(name, e.getCause().getMessage());
+				}
+			}
+			else if (failure != null) {
+				result.put(name, "Failed to read: " + failure.getMessage());
+			}
+		}
+
+		private void unavailable(Exception e) {
+			logger.error("Destination not available: " + file, e);
+			ready.completeExceptionally(e);
+			if (sink != null) {
+				sink.error(e);
+			}
+			// Nothing is going to write the messages that were sent while waiting
+			if (writable) {
+				Message<?> message;
+				while ((message = exchange.poll()) != null) {
+					drop(message, "Destination not available");
+				}
+			}
+		}
+
+		/**
+		 * @return true if the message was accepted, or false if the destination has
+		 * been evicted (in which case the caller should send it to a new one)
+		 */
+		public boolean send(Message<?> message) throws InterruptedException {
+			senders.incrementAndGet();
+			try {
+				if (evicted) {
+					return false;
+				}
+				lastUsed = System.currentTimeMillis();
+				if (ready.isCompletedExceptionally()) {
+					throw new MessageDeliveryException(message,
+							"Destination not available: " + file);
+				}
+				if (overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+					// Drop here instead of in the buffer so the sender of the oldest hears
+					while (!exchange.offer(message)) {
+						drop(exchange.poll(), "Buffer full");
+					}
+				}
+				else if (!exchange.put(message)) {
+					if (overflowPolicy == OverflowPolicy.FAIL) {
+						throw new MessageDeliveryException(message,
+								"Buffer full for: " + file);
+					}
+					drop(message, "Buffer full");
+				}
+				wake();
+				return true;
+			}
+			finally {
+				senders.decrementAndGet();
+			}
+		}
+
+		/**
+		 * @return true if the destination has started (so nothing is waiting for the
+		 * file to appear) and has not already been evicted
+		 */
+		private boolean isEvictable() {
+			return ready.isDone() && !evicted;
+		}
+
+		/**
+		 * Stop accepting messages, and once the ones already sent have been written,
+		 * close the file and let the thread go.
+		 */
+		private void evict() {
+			evicted = true;
+			while (senders.get() > 0) {
+				// Let a sender that got here first finish putting its message
+				Thread.yield();
+			}
+			closed = true;
+			if (retention != null) {
+				retention.cancel(false);
+			}
+			wake();
+		}
+
+		/**
+		 * Give this destination a turn on one of the shared I/O threads, unless it
+		 * already has one coming (or it has its own thread).
+		 */
+		void wake() {
+			if (io != null && scheduled.compareAndSet(false, true)) {
+				execute(this.task);
+			}
+		}
+
+		/**
+		 * Wake up a reader that is waiting for more input, whether it has a thread of its
+		 * own or not.
+		 */
+		private void raise() {
+			wake();
+			if (signal != null) {
+				signal.raise();
+			}
+		}
+
+		private void wakeLater(long nanos) {
+			try {
+				scheduler.schedule(this::wake, nanos, TimeUnit.NANOSECONDS);
+			}
+			catch (RejectedExecutionException e) {
+				// Shutting down
+				wake();
+			}
+		}
+
+		private void execute(Runnable task) {
+			try {
+				io.execute(task);
+			}
+			catch (RejectedExecutionException e) {
+				// Shutting down, so finish up on this thread
+				task.run();
+			}
+		}
+
+		private void drop(Message<?> message, String reason) {
+			if (message == null) {
+				return;
+			}
+			logger.debug(reason + " (dropping message) for: " + file);
+			if (message instanceof PendingMessage) {
+				((PendingMessage) message).future
+						.completeExceptionally(new MessageDeliveryException(
+								((PendingMessage) message).message,
+								reason + " (message dropped) for: " + file));
+			}
 		}
 
 		private void write() throws IOException {
-			FileOutputStream stream = null;
-			while (running.get()) {
+			while (isRunning() || !exchange.isEmpty()) {
 				try {
-					while (running.get()) {
+					// Keep going after a shutdown until everything sent has been written
+					while (isRunning() || !exchange.isEmpty()) {
 						Message<?> message = null;
 						try {
-							message = exchange.take();
+							message = exchange.poll(IDLE_MILLIS, TimeUnit.MILLISECONDS);
 						}
 						catch (InterruptedException e) {
 							running.set(false);
 							Thread.currentThread().interrupt();
 						}
-						if (stream == null) {
-							stream = new FileOutputStream(file, true);
-						}
-						logger.debug("Serializing to " + file + ": " + message);
-						if (message != null) {
-							StringBuilder sb = new StringBuilder();
-							if (!message.getHeaders().isEmpty()) {
-								StringBuilder hb = new StringBuilder();
-								for (Entry<String, Object> entry : message.getHeaders()
-										.entrySet()) {
-									if (!"id".equals(entry.getKey())
-											&& !"timestamp".equals(entry.getKey())
-											&& entry.getValue() instanceof String) {
-										if (hb.length() == 0) {
-											hb.append("#headers\n");
-										}
-										hb.append(entry.getKey()).append("=")
-												.append(entry.getValue()).append("\n");
-									}
-								}
-								if (hb.length() > 0) {
-									sb.append(hb);
-								}
-							}
-							String value = message.getPayload().toString();
-							boolean needsEnd = false;
-							if (value.contains("\n") || sb.length() > 0) {
-								sb.append("#payload\n");
-								needsEnd = true;
-							}
-							sb.append(value).append("\n");
-							if (needsEnd) {
-								sb.append("#end\n");
-							}
-							logger.debug("Sending to " + file + ": " + sb);
-							StreamUtils.copy(sb.toString(), StandardCharsets.UTF_8,
-									stream);
-							stream.flush();
+						if (message == null) {
+							commit(true);
+							continue;
 						}
+						batch.add(message);
+						writeBatch();
 					}
+					// Push out anything still pending before the file is closed
+					commit(true);
 				}
 				catch (Exception e) {
+					// The current batch (and anything not yet synced) may be lost
+					logger.error("Failed to write: " + file, e);
+					settle(e);
+					unloop();
 				}
-				if (stream != null) {
-					try {
-						stream.close();
-					}
-					catch (Exception e) {
-						logger.error("Failed to close: " + file, e);
-					}
-				}
+				reset();
 			}
+			finish();
 		}
 
-		private void listen() throws IOException {
-			while (running.get()) {
-				FileInputStream inputStream = new FileInputStream(file);
-				BufferedReader br = null;
-				br = new BufferedReader(new InputStreamReader(inputStream));
-				logger.debug("Receiving from " + file);
-				while (running.get()) {
-					String line = br.readLine();
-					MessageHeaders headers = null;
-					if (line != null && line.equals("#headers")) {
-						Map<String, Object> map = new LinkedHashMap<>();
-						while (running.get() && line != null) {
-							line = br.readLine();
-							logger.debug("Header line from " + file + ": " + line);
-							if (line == null || line.startsWith("#")) {
-								break;
-							}
-							int index = line.indexOf("=");
-							String key = index >= 0 ? line.substring(0, index) : line;
-							String value = index >= 0 ? line.substring(index + 1) : null;
-							map.put(key, value);
-						}
-						headers = map.isEmpty() ? null : new MessageHeaders(map);
-					}
-					StringBuilder sb = new StringBuilder();
-					boolean nested = false;
-					while (running.get() && line != null) {
-						logger.debug("Line from " + file + ": " + line);
-						if (line.equals("#payload")) {
-							nested = true;
-							line = br.readLine();
-							continue;
+		/**
+		 * Write the messages waiting in the buffer on one of the shared I/O threads, a
+		 * few batches at a time so that the other destinations get a turn.
+		 */
+		private void drain() {
+			int batches = 0;
+			// Keep going after a shutdown until everything sent has been written
+			while (!exchange.isEmpty() && (batches < DRAIN_BATCHES || !isRunning())) {
+				try {
+					writeBatch();
+				}
+				catch (Exception e) {
+					fail(e);
+				}
+				batches++;
+			}
+			if (!exchange.isEmpty()) {
+				execute(this.task);
+				return;
+			}
+			if (batches == 0 || !isRunning()) {
+				try {
+					commit(true);
+				}
+				catch (Exception e) {
+					fail(e);
+				}
+			}
+			if (!isRunning()) {
+				reset();
+				finish();
+				return;
+			}
+			scheduled.set(false);
+			if (!exchange.isEmpty()) {
+				wake();
+			}
+			else if (unsynced > 0) {
+				// Flush (or sync) if nothing else arrives in the meantime
+				wakeLater(TimeUnit.MILLISECONDS.toNanos(IDLE_MILLIS));
+			}
+		}
+
+		/**
+		 * Take a batch of messages from the buffer (as well as any already in the batch)
+		 * and write them.
+		 */
+		private void writeBatch() throws IOException {
+			exchange.drainTo(batch, batchSize - batch.size());
+			for (int i = 0; i < batch.size(); i++) {
+				Message<?> item = batch.get(i);
+				if (item instanceof PendingMessage) {
+					unsettled.add(((PendingMessage) item).future);
+					batch.set(i, ((PendingMessage) item).message);
+				}
+			}
+			long start = System.nanoTime();
+			if (log != null) {
+				if (appender == null) {
+					appender = log.appender();
+				}
+			}
+			else if (stream == null) {
+				stream = new FileOutputStream(file, true);
+				written = file.length();
+				regular = file.isFile();
+			}
+			local = localConsumer();
+			long length = multipleProducers && regular ? writeLocked() : writeRecords();
+			logger.debug("Sending " + batch.size() + " messages to " + file);
+			loop();
+			unsynced += batch.size();
+			metrics.increment(batch.size(), length);
+			batch.clear();
+			commit(false);
+			if (durability == WriteDurability.NONE) {
+				settle(null);
+			}
+			metrics.getLatency().record(System.nanoTime() - start);
+		}
+
+		/**
+		 * Hand the messages in the batch that has just been written straight to the
+		 * consumer of the same destination in this controller (if there is one), and wake
+		 * it up. It skips them when it comes to their records in the file, waiting for
+		 * this if it gets there first. Any that do not fit in its buffer are left for it
+		 * to read from the file as usual.
+		 */
+		private void loop() {
+			if (local == null || looping.isEmpty()) {
+				return;
+			}
+			for (Looped record : looping) {
+				record.handOver(local.exchange);
+			}
+			looping.clear();
+			local.raise();
+		}
+
+		/**
+		 * @return the consumer of the same destination in this controller, if loopback
+		 * is enabled and it can tell the records written by this producer apart from
+		 * the others in the file (so not for a named pipe)
+		 */
+		private FileAdapter localConsumer() {
+			if (!loopback || log == null && !regular) {
+				return null;
+			}
+			FileAdapter consumer = inputs.get(name);
+			return consumer != null && consumer.isRunning() ? consumer : null;
+		}
+
+		/**
+		 * Write the batch while holding a lock on the file, so that it is not interleaved
+		 * with batches from other producers (in this process or others). The lock is
+		 * only taken once per batch, and the messages are encoded while it is held,
+		 * because the header dictionary and the index depend on what was written
+		 * before.
+		 *
+		 * @return the number of bytes written
+		 */
+		private long writeLocked() throws IOException {
+			// An interrupt (e.g. when closing) would close the channel and lose the batch
+			boolean interrupted = Thread.interrupted();
+			try {
+				synchronized (appending.computeIfAbsent(file.getAbsolutePath(),
+						key -> new Object())) {
+					try (FileLock lock = stream.getChannel().lock()) {
+						long end = file.length();
+						if (end != written) {
+							// Another producer has written since our last batch
+							written = end;
+							if (index != null) {
+								index.close();
+								sequence = -1;
+							}
 						}
-						if (line.equals("#end")) {
-							break;
+						// Their header ids may mean something else
+						headers.reset();
+						return writeRecords();
+					}
+				}
+			}
+			finally {
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		/**
+		 * Encode the messages in the batch and append them to the segments or the file.
+		 *
+		 * @return the number of bytes written
+		 */
+		private long writeRecords() throws IOException {
+			long length = 0;
+			if (index != null && sequence < 0) {
+				openIndex();
+			}
+			for (int i = 0; i < batch.size(); i++) {
+				Message<?> item = batch.get(i);
+				if (logger.isDebugEnabled()) {
+					logger.debug("Serializing to " + file + ": " + item);
+				}
+				if (multipleProducers && !regular) {
+					// Writes to the pipe can be interleaved with other producers between
+					// records, so each record has to be decoded on its own
+					headers.reset();
+				}
+				if (index != null && indexed >= indexIntervalBytes
+						&& (format != RecordFormat.COMPRESSED || blockCount == 0)) {
+					// Consumers can start reading here without replaying the dictionary
+					headers.reset();
+					indexNext = true;
+				}
+				byte[] bytes;
+				if (format == RecordFormat.TEXT) {
+					text.setLength(0);
+					TextRecords.encode(item, text);
+					bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+				}
+				else {
+					if (format == RecordFormat.COMPRESSED && blockCount == 0) {
+						// Each block is decoded on its own
+						headers.reset();
+					}
+					bytes = BinaryRecords.encode(item, headers, payloadCodec);
+					if (format == RecordFormat.BINARY && appender != null
+							&& appender.roll(bytes.length)) {
+						// The dictionary starts again in each segment
+						headers.reset();
+						bytes = BinaryRecords.encode(item, headers, payloadCodec);
+					}
+				}
+				if (format == RecordFormat.COMPRESSED) {
+					block.write(bytes);
+					if (local != null) {
+						blockMessages.add(item);
+					}
+					blockCount++;
+					if (block.size() >= blockSize) {
+						length += appendBlock();
+					}
+					continue;
+				}
+				length += append(bytes, 1,
+						local != null ? Collections.singletonList(item) : null);
+			}
+			if (blockCount > 0) {
+				length += appendBlock();
+			}
+			if (stream != null) {
+				buffer.writeTo(stream);
+				buffer.reset();
+			}
+			// Only once the records are there, so a consumer never seeks past the end
+			for (OffsetIndex.Entry entry : unindexed) {
+				index.append(entry.sequence, entry.timestamp, entry.position);
+			}
+			unindexed.clear();
+			return length;
+		}
+
+		private void fail(Exception e) {
+			// The current batch (and anything not yet synced) may be lost
+			logger.error("Failed to write: " + file, e);
+			settle(e);
+			unloop();
+			reset();
+		}
+
+		/**
+		 * After a failed write nothing from the batch is handed over, and the local
+		 * consumer reads whatever did reach the file as usual.
+		 */
+		private void unloop() {
+			looping.clear();
+			if (local != null) {
+				local.looped.clear();
+				local.raise();
+				local = null;
+			}
+		}
+
+		/**
+		 * Throw away anything partly written and close the file, so that it is opened
+		 * again for the next batch.
+		 */
+		private void reset() {
+			batch.clear();
+			looping.clear();
+			buffer.reset();
+			block.reset();
+			blockCount = 0;
+			blockMessages.clear();
+			headers.reset();
+			unsynced = 0;
+			// Count again from the index when the file is opened again
+			sequence = -1;
+			indexNext = false;
+			unindexed.clear();
+			if (stream != null) {
+				try {
+					stream.close();
+				}
+				catch (Exception e) {
+					logger.error("Failed to close: " + file, e);
+				}
+				stream = null;
+			}
+			if (appender != null) {
+				appender.close();
+				appender = null;
+			}
+			if (counter != null) {
+				try {
+					counter.close();
+				}
+				catch (Exception e) {
+					logger.error("Failed to close: " + file, e);
+				}
+				counter = null;
+			}
+		}
+
+		private void finish() {
+			if (deflater != null) {
+				deflater.end();
+			}
+			if (index != null) {
+				try {
+					index.close();
+				}
+				catch (IOException e) {
+					logger.error("Failed to close: " + index.getFile(), e);
+				}
+			}
+			settle(new IllegalStateException("Stopped writing: " + file));
+		}
+
+		/**
+		 * Complete the futures for all the messages written since the last time.
+		 *
+		 * @param error the error to fail them with, or null if they were written
+		 * successfully
+		 */
+		private void settle(Exception error) {
+			for (CompletableFuture<Void> future : unsettled) {
+				if (error == null) {
+					future.complete(null);
+				}
+				else {
+					future.completeExceptionally(error);
+				}
+			}
+			unsettled.clear();
+		}
+
+		/**
+		 * Append a record to the segments or the buffer (which will be written to the
+		 * file at the end of the batch), and add it to the index if it is time to.
+		 *
+		 * @param count the number of messages in the record
+		 * @param messages the messages to hand straight to the local consumer once they
+		 * are written (or null if there is no local consumer)
+		 * @return the number of bytes appended
+		 */
+		private int append(byte[] bytes, int count, List<Message<?>> messages)
+				throws IOException {
+			long position = written;
+			if (appender != null && (indexNext || messages != null)) {
+				// Find out which segment it will land in
+				appender.roll(bytes.length);
+				position = appender.getOffset();
+			}
+			if (indexNext) {
+				unindexed.add(
+						new OffsetIndex.Entry(sequence, System.currentTimeMillis(), position));
+				indexNext = false;
+				indexed = 0;
+			}
+			if (messages != null) {
+				// Before the record is written, so the consumer always knows to wait for it
+				long end = position + bytes.length + (appender != null ? 4 : 0);
+				Looped record = new Looped(position, end, messages);
+				local.looped.add(record);
+				looping.add(record);
+			}
+			if (appender != null) {
+				appender.append(bytes);
+			}
+			else {
+				if (multipleProducers && !regular) {
+					// Only writes up to PIPE_BUF are atomic
+					if (bytes.length > PIPE_BUF) {
+						throw new IllegalArgumentException("Record of length "
+								+ bytes.length + " is too long to write to a named pipe"
+								+ " with multiple producers (maximum " + PIPE_BUF + ")");
+					}
+					if (buffer.size() + bytes.length > PIPE_BUF) {
+						buffer.writeTo(stream);
+						buffer.reset();
+					}
+				}
+				buffer.write(bytes);
+				written += bytes.length;
+			}
+			sequence += count;
+			indexed += bytes.length;
+			return bytes.length;
+		}
+
+		private int appendBlock() throws IOException {
+			int count = blockCount;
+			List<Message<?>> messages = null;
+			if (!blockMessages.isEmpty()) {
+				messages = new ArrayList<>(blockMessages);
+				blockMessages.clear();
+			}
+			return append(compress(), count, messages);
+		}
+
+		/**
+		 * Work out the sequence number of the next message from the last index entry
+		 * (and the messages after it).
+		 */
+		private void openIndex() throws IOException {
+			OffsetIndex.Entry last = index.last();
+			// An interrupt (e.g. when closing) would close the channel used to count
+			boolean interrupted = Thread.interrupted();
+			try {
+				sequence = last == null ? count(0L) : last.sequence + count(last.position);
+			}
+			finally {
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			// Start with a new entry
+			indexed = indexIntervalBytes;
+		}
+
+		/**
+		 * @return the number of messages from the position provided to the end
+		 */
+		private long count(long position) throws IOException {
+			long count = 0;
+			if (log != null) {
+				SegmentedLog.Reader reader = log.reader(position);
+				try {
+					byte[] record;
+					while ((record = reader.next()) != null) {
+						count += CompressedBlocks.isBlock(record)
+								? CompressedBlocks.count(record)
+								: 1;
+					}
+				}
+				finally {
+					reader.close();
+				}
+				return count;
+			}
+			if (counter == null) {
+				// Kept open until the file is closed, because closing any stream on the
+				// file would release a lock held by this process
+				counter = new FileInputStream(file);
+			}
+			FileChannel channel = counter.getChannel();
+			channel.position(position);
+			RecordReader reader = new RecordReader(channel, position);
+			while (true) {
+				int next = reader.peek();
+				if (next == BinaryRecords.MAGIC || next == CompressedBlocks.MAGIC) {
+					byte[] record = reader.readBinary();
+					if (record == null) {
+						break;
+					}
+					count += next == CompressedBlocks.MAGIC
+							? CompressedBlocks.count(record)
+							: 1;
+				}
+				else if (next >= 0) {
+					long start = reader.getPosition();
+					if (TextRecords.parse(reader) != null) {
+						count++;
+					}
+					else if (reader.getPosition() == start) {
+						break;
+					}
+				}
+				else {
+					break;
+				}
+			}
+			return count;
+		}
+
+		/**
+		 * @return a compressed block containing all the records gathered since the
+		 * last one
+		 */
+		private byte[] compress() {
+			byte[] result = CompressedBlocks.compress(block.toByteArray(), block.size(),
+					blockCount, deflater);
+			block.reset();
+			blockCount = 0;
+			return result;
+		}
+
+		/**
+		 * Push pending writes out according to the durability setting.
+		 *
+		 * @param idle true if there are no messages waiting to be written, in which case
+		 * anything pending is flushed (and synced if the durability requires it)
+		 */
+		private void commit(boolean idle) throws IOException {
+			if (unsynced == 0 || durability == WriteDurability.NONE && !idle) {
+				return;
+			}
+			if (stream != null) {
+				stream.flush();
+			}
+			if (durability == WriteDurability.FSYNC_MESSAGES
+					|| durability == WriteDurability.FSYNC_INTERVAL) {
+				if (!idle && (durability == WriteDurability.FSYNC_MESSAGES
+						? unsynced < fsyncMessages
+						: System.currentTimeMillis() - lastSync < fsyncIntervalMillis)) {
+					return;
+				}
+				sync();
+				lastSync = System.currentTimeMillis();
+			}
+			unsynced = 0;
+			settle(null);
+		}
+
+		private void sync() throws IOException {
+			if (appender != null) {
+				appender.force();
+				metrics.synced();
+			}
+			else if (stream != null && syncable) {
+				try {
+					stream.getFD().sync();
+					metrics.synced();
+				}
+				catch (SyncFailedException e) {
+					// Probably a pipe, so there is nothing to force to disk
+					logger.debug("Cannot sync (disabling): " + file);
+					syncable = false;
+				}
+			}
+		}
+
+		private void listen() throws IOException {
+			try {
+				while (isRunning()) {
+					try {
+						if (reader == null && segments == null) {
+							open();
 						}
-						sb.append(line);
-						if (nested) {
-							line = br.readLine();
-							if (line.equals("#end")) {
-								break;
-							}
-							sb.append(System.getProperty("line.separator"));
+						if (!awaitDemand()) {
+							continue;
+						}
+						long version = signal == null ? 0L : signal.getVersion();
+						if (read()) {
+							idle = 0;
 						}
 						else {
-							break;
+							pause(version);
 						}
+						recovered();
 					}
-					if (sb.length() > 0 || headers != null) {
-						MessageBuilder<String> builder = MessageBuilder
-								.withPayload(sb.toString());
-						if (headers != null) {
-							builder.copyHeadersIfAbsent(headers);
+					catch (IOException e) {
+						if (!isRunning()) {
+							// Closing, which interrupts a read in progress
+							break;
+						}
+						if (sink != null) {
+							throw e;
+						}
+						suspend(e);
+						LockSupport.parkNanos(retryNanos());
+						if (Thread.interrupted()) {
+							running.set(false);
+							Thread.currentThread().interrupt();
 						}
-						Message<String> message = builder.build();
-						logger.debug("Assembled from " + file + ": " + message);
-						if (this.target != null) {
-							target.send(message);
+					}
+				}
+			}
+			finally {
+				closeReader();
+			}
+		}
+
+		/**
+		 * Close the input after a failure, noting where to open it again, so that the
+		 * next attempt carries on from the same record.
+		 */
+		private void suspend(Exception e) {
+			logger.error("Failed to read: " + file, e);
+			failure = e;
+			if (reader != null) {
+				resumeAt = position;
+			}
+			else if (segments != null) {
+				resumeAt = unread != null ? unreadOffset : segments.getOffset();
+			}
+			closeReader();
+		}
+
+		private void recovered() {
+			failures = 0;
+			failure = null;
+		}
+
+		/**
+		 * @return how long to wait before trying again after a failure, backing off
+		 * exponentially while the failures continue
+		 */
+		private long retryNanos() {
+			return Math.min(MAX_RETRY_NANOS,
+					Math.max(waitNanos, MIN_PARK_NANOS) << Math.min(failures++, 20));
+		}
+
+		/**
+		 * Read the messages available on one of the shared I/O threads, up to a batch at
+		 * a time so that the other destinations get a turn, and then wait (without
+		 * holding the thread) for more.
+		 */
+		private void step() {
+			try {
+				if (!isRunning()) {
+					closeReader();
+					return;
+				}
+				if (reader == null && segments == null) {
+					open();
+				}
+				long version = signal == null ? 0L : signal.getVersion();
+				int count = 0;
+				// A polled consumer with a full buffer has to catch up first (so a
+				// thread is not blocked waiting for it)
+				while (count < batchSize && isRunning()
+						&& (target != null || !exchange.isFull()) && read()) {
+					count++;
+				}
+				if (count > 0) {
+					idle = 0;
+				}
+				if (count == batchSize) {
+					execute(this.task);
+					return;
+				}
+				boolean backlogged = target == null && exchange.isFull();
+				scheduled.set(false);
+				if (!isRunning()) {
+					wake();
+				}
+				else if (backlogged) {
+					wakeLater(waitNanos);
+				}
+				else {
+					wakeAfterPause(version);
+				}
+				recovered();
+			}
+			catch (Exception e) {
+				if (!isRunning()) {
+					closeReader();
+					scheduled.set(false);
+					return;
+				}
+				suspend(e);
+				scheduled.set(false);
+				wakeLater(retryNanos());
+			}
+		}
+
+		/**
+		 * Schedule the next read after reaching the end of the input, in the same way as
+		 * {@link #pause(long)} would wait.
+		 *
+		 * @param version the version of the file signal before the last read
+		 */
+		private void wakeAfterPause(long version) {
+			switch (waitStrategy) {
+			case BUSY_SPIN:
+			case YIELD:
+				wake();
+				break;
+			case BACK_OFF:
+				wakeLater(Math.min(waitNanos, MIN_PARK_NANOS << Math.min(idle++, 30)));
+				break;
+			default:
+				if (signal != null) {
+					if (watching.compareAndSet(false, true)) {
+						signal.onRaise(version, () -> {
+							watching.set(false);
+							wake();
+						});
+					}
+					wakeLater(TimeUnit.MILLISECONDS.toNanos(signalTimeoutMillis));
+				}
+				else {
+					wakeLater(waitNanos);
+				}
+			}
+		}
+
+		private void open() throws IOException {
+			long offset = resumeAt >= 0 ? resumeAt
+					: checkpoint == null ? 0L : checkpoint.getOffset();
+			// The header dictionary starts again at each index entry
+			boolean indexed = false;
+			if (offset == 0L && index != null
+					&& startPosition != StartPosition.EARLIEST) {
+				OffsetIndex.Entry entry = seek();
+				if (entry != null) {
+					offset = entry.position;
+					indexed = true;
+				}
+			}
+			if (log != null) {
+				openSegments(offset, !indexed);
+			}
+			else {
+				FileInputStream inputStream = new FileInputStream(file);
+				long end = inputStream.getChannel().size();
+				if (offset > end) {
+					if (indexed && startPosition == StartPosition.OFFSET) {
+						// The index is ahead of the file, so count from the beginning
+						skip = startOffset;
+					}
+					offset = 0L;
+					indexed = false;
+				}
+				if (skip == Long.MAX_VALUE && !indexed) {
+					// No index entry to start from, so skip straight to the end
+					offset = end;
+					skip = 0;
+				}
+				if (offset > 0) {
+					inputStream.getChannel().position(offset);
+				}
+				headers.reset();
+				replayTo = offset > 0 && !indexed ? offset : -1L;
+				reader = new RecordReader(inputStream.getChannel(), offset);
+				position = offset;
+				logger.debug("Receiving from " + file + " at " + offset);
+			}
+			resumeAt = -1L;
+			if (skip == Long.MAX_VALUE) {
+				// Skip to the end
+				while (read()) {
+				}
+				skip = 0;
+			}
+		}
+
+		/**
+		 * Look up the start position in the index, and work out how many messages after
+		 * the entry to skip.
+		 *
+		 * @return the index entry to start reading from, or null to start at the
+		 * beginning
+		 */
+		private OffsetIndex.Entry seek() throws IOException {
+			OffsetIndex.Entry entry;
+			switch (startPosition) {
+			case LATEST:
+				entry = index.last();
+				skip = Long.MAX_VALUE;
+				break;
+			case OFFSET:
+				entry = index.floorSequence(startOffset);
+				skip = startOffset - (entry == null ? 0L : entry.sequence);
+				break;
+			default:
+				entry = index.floorTimestamp(startTimestamp);
+			}
+			logger.debug("Seeking " + startPosition + " in " + file + " from "
+					+ (entry == null ? 0L : entry.position) + " skipping " + skip);
+			return entry;
+		}
+
+		/**
+		 * Read the next record and dispatch the messages in it.
+		 *
+		 * @return true if a record was read, false at the end of the input
+		 */
+		private boolean read() throws IOException {
+			boolean delivered = deliverLooped();
+			if (log != null) {
+				return readSegment() || delivered;
+			}
+			int next = reader.peek();
+			// After looking at the file, so if the record is there and it is one of the
+			// local producer's, it is already in the queue
+			Looped mine = looped(reader.getPosition(), false);
+			if (mine != null && !mine.settled) {
+				// Written, but not handed over yet
+				return delivered;
+			}
+			if (next >= 0 && replayTo >= 0) {
+				replay(next == BinaryRecords.MAGIC);
+			}
+			Message<?> message = null;
+			List<Message<?>> messages = null;
+			if (mine != null && mine.all && next >= 0 && next != BinaryRecords.MAGIC) {
+				// Already delivered, and (unlike a binary record, which might define
+				// header ids) not needed to decode the records after it
+				if (!reader.skip((int) (mine.end - mine.start))) {
+					next = -1;
+				}
+			}
+			else if (next == BinaryRecords.MAGIC || next == CompressedBlocks.MAGIC) {
+				byte[] record = reader.readBinary();
+				if (record == null) {
+					next = -1;
+				}
+				else {
+					try {
+						if (next == CompressedBlocks.MAGIC) {
+							messages = CompressedBlocks.decode(record, payloads);
 						}
 						else {
-							try {
-								exchange.put(message);
-							}
-							catch (InterruptedException e) {
-								running.set(false);
-								Thread.currentThread().interrupt();
-							}
+							message = BinaryRecords.decode(record, headers, payloads);
 						}
 					}
-					if (line == null) {
-						// Reached end of file. So it's not a fifo, or the producer closed
-						// it, and we should sleep to prevent a busy wait. TODO: should we
-						// also empty the file, if it is a file?
-						try {
-							Thread.sleep(20L);
+					catch (RuntimeException e) {
+						skip(position, e);
+					}
+				}
+			}
+			else if (next >= 0) {
+				long start = reader.getPosition();
+				message = TextRecords.parse(reader);
+				if (message == null && reader.getPosition() == start) {
+					// Not a whole record yet
+					next = -1;
+				}
+			}
+			if (next < 0) {
+				// Reached end of file. So it's not a fifo, or the producer closed
+				// it, and we should wait to prevent a busy wait. (Plain files are
+				// never truncated: use segmented storage for retention.)
+				advance(position);
+				return delivered;
+			}
+			long length = reader.getPosition() - position;
+			position = reader.getPosition();
+			if (mine != null) {
+				dispatch(mine, messages != null || message == null ? messages
+						: Collections.singletonList(message), length);
+			}
+			else if (messages != null) {
+				// A whole block, and the checkpoint is only updated at the end
+				metrics.increment(messages.size(), length);
+				for (Message<?> item : messages) {
+					dispatch(item);
+				}
+			}
+			else {
+				metrics.increment(length);
+				if (message != null) {
+					dispatch(message);
+				}
+			}
+			advance(position);
+			return true;
+		}
+
+		private void closeReader() {
+			try {
+				if (reader != null) {
+					reader.close();
+				}
+				if (segments != null) {
+					segments.close();
+				}
+			}
+			catch (Exception e) {
+				logger.error("Failed to close: " + file, e);
+			}
+			reader = null;
+			segments = null;
+			unread = null;
+		}
+
+		/**
+		 * Replay the header dictionary up to the offset the reader was opened at, when the
+		 * first record after it is known. Only a binary record can refer to ids defined
+		 * before it (text records carry no ids, compressed blocks start their own
+		 * dictionary, and a producer never changes format), and the producer starts the
+		 * dictionary again at each index entry, so only the records since the last entry
+		 * before the offset are read.
+		 *
+		 * @param binary true if the first record is a binary record
+		 */
+		private void replay(boolean binary) throws IOException {
+			long offset = replayTo;
+			replayTo = -1L;
+			if (!binary) {
+				return;
+			}
+			OffsetIndex.Entry entry = index == null ? null : index.floorPosition(offset);
+			long from = entry == null ? 0L : entry.position;
+			if (log != null) {
+				// Header ids are defined earlier in the same segment
+				SegmentedLog.Reader segment = log
+						.reader(Math.max(from, offset & 0xFFFFFFFF00000000L));
+				try {
+					while (segment.getOffset() < offset) {
+						long start = segment.getOffset();
+						byte[] record = segment.next();
+						if (record == null) {
+							break;
 						}
-						catch (InterruptedException e) {
-							running.set(false);
-							Thread.currentThread().interrupt();
+						if (BinaryRecords.isBinary(record)) {
+							define(record, start);
+						}
+					}
+				}
+				finally {
+					segment.close();
+				}
+			}
+			else {
+				FileInputStream input = new FileInputStream(file);
+				input.getChannel().position(from);
+				replay(new RecordReader(input.getChannel(), from), offset);
+			}
+		}
+
+		/**
+		 * Read the records in a file up to an offset, without processing them, so that
+		 * the header dictionary is complete when reading starts at that offset.
+		 */
+		private void replay(RecordReader reader, long offset) throws IOException {
+			logger.debug("Reading header dictionary from " + file + " up to " + offset);
+			try {
+				while (reader.getPosition() < offset) {
+					long start = reader.getPosition();
+					int next = reader.peek();
+					if (next == BinaryRecords.MAGIC) {
+						byte[] record = reader.readBinary();
+						if (record == null) {
+							break;
+						}
+						define(record, start);
+					}
+					else if (next == CompressedBlocks.MAGIC) {
+						if (!reader.skipBinary()) {
+							break;
 						}
 					}
+					else if (next < 0 || !reader.skipLine()) {
+						break;
+					}
+				}
+			}
+			finally {
+				reader.close();
+			}
+		}
+
+		private void openSegments(long offset, boolean replay) throws IOException {
+			logger.debug("Receiving from segments in " + file + " at " + offset);
+			headers.reset();
+			replayTo = (int) offset != 0 && replay ? offset : -1L;
+			segments = log.reader(offset);
+		}
+
+		private boolean readSegment() throws IOException {
+			long start = unread != null ? unreadOffset : segments.getOffset();
+			byte[] record = unread != null ? unread : segments.next();
+			unread = null;
+			if (record == null) {
+				// Concurrent workers might have caught up in the meantime
+				advance(segments.getOffset());
+				return false;
+			}
+			if (replayTo >= 0) {
+				replay(BinaryRecords.isBinary(record));
+			}
+			Looped mine = looped(segments.getOffset(), true);
+			if (mine != null && !mine.settled) {
+				// Written, but not handed over yet, so come back to it
+				unread = record;
+				unreadOffset = start;
+				return false;
+			}
+			List<Message<?>> messages = null;
+			try {
+				messages = decode(record, mine != null && mine.all);
+			}
+			catch (RuntimeException ex) {
+				skip(start, ex);
+			}
+			if (mine != null) {
+				dispatch(mine, messages, record.length + 4);
+			}
+			else {
+				if (messages != null && CompressedBlocks.isBlock(record)) {
+					metrics.increment(messages.size(), record.length + 4);
+				}
+				else {
+					metrics.increment(record.length + 4);
+				}
+				if (messages != null) {
+					for (Message<?> message : messages) {
+						dispatch(message);
+					}
+				}
+			}
+			advance(segments.getOffset());
+			return true;
+		}
+
+		/**
+		 * Decode a record from a segment.
+		 *
+		 * @param delivered true if all the messages in the record were handed over by the
+		 * local producer (so only the header dictionary is needed)
+		 * @return the messages in the record, or null if there are none to dispatch
+		 */
+		private List<Message<?>> decode(byte[] record, boolean delivered)
+				throws IOException {
+			if (CompressedBlocks.isBlock(record)) {
+				return delivered ? null : CompressedBlocks.decode(record, payloads);
+			}
+			if (BinaryRecords.isBinary(record)) {
+				if (delivered) {
+					BinaryRecords.decode(record, headers);
+					return null;
+				}
+				return Collections
+						.singletonList(BinaryRecords.decode(record, headers, payloads));
+			}
+			if (delivered) {
+				return null;
+			}
+			Message<?> message = TextRecords
+					.parse(new RecordReader(ByteBuffer.wrap(record)));
+			return message == null ? null : Collections.singletonList(message);
+		}
+
+		/**
+		 * Add the header ids defined in a binary record to the dictionary.
+		 */
+		private void define(byte[] record, long offset) {
+			try {
+				BinaryRecords.decode(record, headers);
+			}
+			catch (RuntimeException e) {
+				skip(offset, e);
+			}
+		}
+
+		/**
+		 * A record that cannot be decoded is logged and skipped, so that one bad record
+		 * does not stop the consumer. Its messages are not delivered.
+		 */
+		private void skip(long offset, RuntimeException e) {
+			logger.error("Skipping record at " + offset + " in " + file
+					+ " that cannot be decoded", e);
+		}
+
+		/**
+		 * Move the group offset up to a position once all the messages before it have
+		 * been handled, which with concurrent workers might not be until later (so this
+		 * is called again while waiting for more input).
+		 */
+		private void advance(long position) {
+			if (checkpoint == null) {
+				return;
+			}
+			MessageChannel target = this.target;
+			if (target instanceof OrderedDispatcher) {
+				long handled = ((OrderedDispatcher) target).mark(position);
+				if (handled >= 0) {
+					checkpoint.update(handled);
 				}
-				if (br != null) {
+			}
+			else {
+				checkpoint.update(position);
+			}
+		}
+
+		private void triggerRetention() {
+			// Archiving a segment can be slow, so the shared scheduler only triggers it
+			if (!retaining.compareAndSet(false, true)) {
+				return;
+			}
+			try {
+				executor.execute(this::retain);
+			}
+			catch (RejectedExecutionException e) {
+				retaining.set(false);
+			}
+		}
+
+		private void retain() {
+			try {
+				log.retain(retentionBytes, retentionMillis, retentionAction);
+			}
+			catch (Exception e) {
+				logger.error("Failed to apply retention to: " + file, e);
+			}
+			finally {
+				retaining.set(false);
+			}
+		}
+
+		private boolean isRunning() {
+			return running.get() && !this.closed;
+		}
+
+		/**
+		 * Wait for a reactive subscriber to request more messages (if there is one).
+		 *
+		 * @return true if the next message can be read
+		 */
+		private boolean awaitDemand() {
+			if (this.sink == null || this.sink.requestedFromDownstream() > 0) {
+				return true;
+			}
+			synchronized (this.demand) {
+				if (this.sink.requestedFromDownstream() == 0) {
 					try {
-						br.close();
+						this.demand.wait(IDLE_MILLIS);
 					}
-					catch (Exception e) {
-						logger.error("Failed to close: " + file, e);
+					catch (InterruptedException e) {
+						running.set(false);
+						Thread.currentThread().interrupt();
 					}
+				}
+			}
+			return this.sink.requestedFromDownstream() > 0;
+		}
 
+		private void dispatch(Message<?> message) {
+			if (skip > 0) {
+				skip--;
+				return;
+			}
+			deliver(message);
+		}
+
+		private void deliver(Message<?> message) {
+			if (logger.isDebugEnabled()) {
+				logger.debug("Assembled from " + file + ": " + message);
+			}
+			long start = System.nanoTime();
+			if (this.sink != null) {
+				sink.next(message);
+			}
+			else if (this.target != null) {
+				target.send(message);
+			}
+			else {
+				try {
+					exchange.put(message);
+				}
+				catch (InterruptedException e) {
+					running.set(false);
+					Thread.currentThread().interrupt();
+				}
+			}
+			metrics.getLatency().record(System.nanoTime() - start);
+		}
+
+		/**
+		 * Dispatch the messages in a record written by the producer in this controller,
+		 * apart from the ones it already delivered through the loopback.
+		 *
+		 * @param mine the record written by the local producer
+		 * @param messages the messages in the record (only needed if some of them were
+		 * not delivered)
+		 * @param length the length of the record
+		 */
+		private void dispatch(Looped mine, List<Message<?>> messages, long length) {
+			// The ones that were handed over come first
+			deliverLooped();
+			looped.remove(mine);
+			metrics.increment(mine.delivered.length, length);
+			for (int i = 0; i < mine.delivered.length; i++) {
+				if (mine.delivered[i]) {
+					// Still counts as one of the messages to skip at the start
+					if (skip > 0) {
+						skip--;
+					}
+				}
+				else if (messages != null && i < messages.size()) {
+					dispatch(messages.get(i));
+				}
+			}
+		}
+
+		/**
+		 * Dispatch the messages that the producer of the same destination in this
+		 * controller has handed over (a polled consumer gets them straight from the
+		 * buffer instead).
+		 *
+		 * @return true if there were any
+		 */
+		private boolean deliverLooped() {
+			if (!loopback || target == null) {
+				return false;
+			}
+			boolean delivered = false;
+			Message<?> message;
+			while ((message = exchange.poll()) != null) {
+				deliver(message);
+				delivered = true;
+			}
+			return delivered;
+		}
+
+		/**
+		 * Find out if the next record was written by the producer of the same
+		 * destination in this controller after handing its messages over, forgetting
+		 * the ones that have already been passed (e.g. after starting at the end).
+		 *
+		 * @param offset the position of the next record in a plain file, or the offset
+		 * just after the one that has just been read from a segment
+		 * @param end true if the offset is the end of the record
+		 * @return the record, or null if it is not one of the local producer's
+		 */
+		private Looped looped(long offset, boolean end) {
+			Looped record;
+			while ((record = looped.peek()) != null) {
+				long key = end ? record.end : record.start;
+				if (key >= offset) {
+					return key == offset ? record : null;
+				}
+				looped.poll();
+			}
+			return null;
+		}
+
+		/**
+		 * @return the number of bytes left to read in a plain file, or -1 if unknown
+		 */
+		private long lag() {
+			long position = this.position;
+			if (position < 0 || !file.isFile()) {
+				return -1;
+			}
+			return Math.max(0, file.length() - position);
+		}
+
+		/**
+		 * Wait for more data after reaching the end of the input.
+		 *
+		 * @param version the version of the file signal before the last read
+		 */
+		private void pause(long version) {
+			try {
+				switch (waitStrategy) {
+				case BUSY_SPIN:
+					break;
+				case YIELD:
+					if (idle++ >= SPIN_TRIES) {
+						Thread.yield();
+					}
+					break;
+				case BACK_OFF:
+					LockSupport.parkNanos(Math.min(waitNanos,
+							MIN_PARK_NANOS << Math.min(idle++, 30)));
+					if (Thread.interrupted()) {
+						throw new InterruptedException();
+					}
+					break;
+				default:
+					if (signal != null) {
+						// Raised by the watcher, or by a local producer when it hands
+						// something over
+						signal.await(version, signalTimeoutMillis);
+					}
+					else {
+						TimeUnit.NANOSECONDS.sleep(waitNanos);
+					}
 				}
 			}
+			catch (InterruptedException e) {
+				running.set(false);
+				Thread.currentThread().interrupt();
+			}
+		}
+
+	}
+
+	/**
+	 * A record written by a producer that hands its messages straight to the consumer
+	 * of the same destination in the same controller once the batch is written. The
+	 * consumer waits for that if it comes to the record in the file first, and then
+	 * skips the messages that were handed over (all of them, or the ones flagged). The
+	 * start and end are byte positions in a plain file, or offsets in the segments.
+	 */
+	private static class Looped {
+
+		private final long start;
+
+		private final long end;
+
+		private final boolean[] delivered;
+
+		private List<Message<?>> messages;
+
+		private boolean all;
+
+		private volatile boolean settled;
+
+		Looped(long start, long end, List<Message<?>> messages) {
+			this.start = start;
+			this.end = end;
+			this.messages = messages;
+			this.delivered = new boolean[messages.size()];
+		}
+
+		/**
+		 * Offer the messages to the consumer's buffer, and note which ones fit.
+		 */
+		void handOver(RingBuffer<Message<?>> exchange) {
+			boolean all = true;
+			for (int i = 0; i < this.delivered.length; i++) {
+				this.delivered[i] = exchange.offer(this.messages.get(i));
+				all &= this.delivered[i];
+			}
+			this.all = all;
+			this.messages = null;
+			this.settled = true;
+		}
+
+	}
+
+	/**
+	 * A message sent with {@link MessageController#sendAsync(String, Message)}, carrying
+	 * the future to complete when it has been written.
+	 */
+	private static class PendingMessage implements Message<Object> {
+
+		private final Message<?> message;
+
+		private final CompletableFuture<Void> future;
+
+		PendingMessage(Message<?> message, CompletableFuture<Void> future) {
+			this.message = message;
+			this.future = future;
+		}
+
+		@Override
+		public Object getPayload() {
+			return this.message.getPayload();
+		}
+
+		@Override
+		public MessageHeaders getHeaders() {
+			return this.message.getHeaders();
 		}
 
 	}
@@ -328,4 +2404,137 @@ public class MessageController implements Closeable {
 	public void setTimeout(long timeoutMillis) {
 		this.timeoutMillis = timeoutMillis;
 	}
+
+	public void setDurability(WriteDurability durability) {
+		this.durability = durability;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public void setFsyncMessages(int fsyncMessages) {
+		this.fsyncMessages = fsyncMessages;
+	}
+
+	public void setFsyncIntervalMillis(long fsyncIntervalMillis) {
+		this.fsyncIntervalMillis = fsyncIntervalMillis;
+	}
+
+	public void setStorage(Storage storage) {
+		this.storage = storage;
+	}
+
+	public void setSegmentSize(int segmentSize) {
+		this.segmentSize = segmentSize;
+	}
+
+	public void setCommitIntervalMillis(long commitIntervalMillis) {
+		this.commitIntervalMillis = commitIntervalMillis;
+	}
+
+	public void setSegmentRollMillis(long segmentRollMillis) {
+		this.segmentRollMillis = segmentRollMillis;
+	}
+
+	public void setRetentionBytes(long retentionBytes) {
+		this.retentionBytes = retentionBytes;
+	}
+
+	public void setRetentionMillis(long retentionMillis) {
+		this.retentionMillis = retentionMillis;
+	}
+
+	public void setRetentionAction(RetentionAction retentionAction) {
+		this.retentionAction = retentionAction;
+	}
+
+	public void setRetentionCheckMillis(long retentionCheckMillis) {
+		this.retentionCheckMillis = retentionCheckMillis;
+	}
+
+	public void setWatch(boolean watch) {
+		this.watch = watch;
+	}
+
+	public void setWatchTimeoutMillis(long watchTimeoutMillis) {
+		this.watchTimeoutMillis = watchTimeoutMillis;
+	}
+
+	/**
+	 * @param idleTimeoutMillis the time after which a producer that has not been sent
+	 * anything is closed (0, the default, means never). It is opened again if another
+	 * message is sent to it.
+	 */
+	public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+		this.idleTimeoutMillis = idleTimeoutMillis;
+	}
+
+	/**
+	 * @param maxOutputs the maximum number of producers that are open at once (0, the
+	 * default, means no limit). The least recently used ones are closed to make room.
+	 */
+	public void setMaxOutputs(int maxOutputs) {
+		this.maxOutputs = maxOutputs;
+	}
+
+	/**
+	 * @param indexIntervalBytes the number of bytes written to a destination between
+	 * entries in its index (0 means no index)
+	 */
+	public void setIndexIntervalBytes(int indexIntervalBytes) {
+		this.indexIntervalBytes = indexIntervalBytes;
+	}
+
+	/**
+	 * @param codec the codec for payloads that are not strings or byte arrays, used by
+	 * producers that ask for it (with a binary format), and by all consumers to decode
+	 * them
+	 */
+	public void setCodec(Codec codec) {
+		this.payloads = codec == null ? null : new PayloadCodec(codec);
+		if (this.payloads != null) {
+			this.payloads.setTrustedTypes(this.trustedPayloadTypes);
+		}
+	}
+
+	/**
+	 * @param trustedPayloadTypes the payload classes that consumers decode with the
+	 * codec: class names, packages followed by ".*", or "*" for all of them. Payloads of
+	 * other types are received as the encoded bytes. None by default.
+	 */
+	public void setTrustedPayloadTypes(String... trustedPayloadTypes) {
+		this.trustedPayloadTypes = trustedPayloadTypes;
+		if (this.payloads != null) {
+			this.payloads.setTrustedTypes(trustedPayloadTypes);
+		}
+	}
+
+	/**
+	 * @param loopback true to hand messages sent to a destination straight to a
+	 * consumer bound to (or polling) the same destination in this controller, as soon
+	 * as they are written, instead of waiting for it to read them from the file (which
+	 * it then skips over). They can overtake older messages that the consumer has not
+	 * read from the file yet. Other consumers still read the file as usual.
+	 */
+	public void setLoopback(boolean loopback) {
+		this.loopback = loopback;
+	}
+
+	/**
+	 * @param errorHandler the handler for messages that a consumer with concurrent
+	 * workers fails to handle (if there is none they are logged, and the group offset
+	 * stops short of them so they are delivered again after a restart)
+	 */
+	public void setErrorHandler(ErrorHandler errorHandler) {
+		this.errorHandler = errorHandler;
+	}
+
+	/**
+	 * @param ioThreads the number of threads shared by all the destinations to read and
+	 * write files (0, the default, means each destination has a thread of its own)
+	 */
+	public void setIoThreads(int ioThreads) {
+		this.ioThreads = ioThreads;
+	}
 }
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.binder.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The committed read position of a consumer group in a destination, kept in a small
+ * file next to the data. Updates are cheap (in memory) and are only written to disk
+ * when {@link #commit()} is called.
+ *
+ * @author Dave Syer
+ *
+ */
+class OffsetCheckpoint {
+
+	private final File file;
+
+	private volatile long offset;
+
+	private long committed;
+
+	public OffsetCheckpoint(File file) {
+		this.file = file;
+		this.offset = read();
+		this.committed = this.offset;
+	}
+
+	public File getFile() {
+		return this.file;
+	}
+
+	public long getOffset() {
+		return this.offset;
+	}
+
+	public void update(long offset) {
+		this.offset = offset;
+	}
+
+	/**
+	 * Write the current offset to disk if it has changed since the last commit.
+	 */
+	public synchronized void commit() throws IOException {
+		long offset = this.offset;
+		if (offset == this.committed) {
+			return;
+		}
+		File temp = new File(this.file.getPath() + ".tmp");
+		Files.write(temp.toPath(),
+				Long.toString(offset).getBytes(StandardCharsets.UTF_8));
+		Files.move(temp.toPath(), this.file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		this.committed = offset;
+	}
+
+	private long read() {
+		if (!this.file.exists()) {
+			return 0L;
+		}
+		try {
+			return Long.parseLong(new String(Files.readAllBytes(this.file.toPath()),
+					StandardCharsets.UTF_8).trim());
+		}
+		catch (IOException | NumberFormatException e) {
+			return 0L;
+		}
+	}
+
+}
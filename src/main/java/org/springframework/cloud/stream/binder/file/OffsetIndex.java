@@ -0,0 +1,190 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.binder.file;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.function.ToLongFunction;
+
+/**
+ * A sparse index of a destination, kept in a file next to the data. The producer adds
+ * an entry every so often with the sequence number of the next message (counting from
+ * 0 at the start of the destination), the time it was written and its position, so
+ * that consumers can find where to start reading with a binary search instead of
+ * reading everything before it. Entries are fixed length and in order of all three
+ * values.
+ *
+ * @author Dave Syer
+ *
+ */
+class OffsetIndex implements Closeable {
+
+	static final int ENTRY_LENGTH = 24;
+
+	private final File file;
+
+	/**
+	 * The file for appending. Not a channel, because the producer might be interrupted
+	 * when it is closed, and that would close a channel before the last entry is
+	 * written.
+	 */
+	private RandomAccessFile output;
+
+	private long lastTimestamp;
+
+	public OffsetIndex(File file) {
+		this.file = file;
+	}
+
+	public File getFile() {
+		return this.file;
+	}
+
+	/**
+	 * @return the last entry, or null if there are none
+	 */
+	public Entry last() throws IOException {
+		try (RandomAccessFile input = open()) {
+			if (input == null) {
+				return null;
+			}
+			long count = input.length() / ENTRY_LENGTH;
+			return count == 0 ? null : read(input, count - 1);
+		}
+	}
+
+	/**
+	 * @param sequence a message sequence number
+	 * @return the last entry at or before the message, or null if there are none
+	 */
+	public Entry floorSequence(long sequence) throws IOException {
+		return floor(entry -> entry.sequence, sequence);
+	}
+
+	/**
+	 * @param timestamp a time in milliseconds
+	 * @return the last entry written at or before the time, or null if there are none
+	 */
+	public Entry floorTimestamp(long timestamp) throws IOException {
+		return floor(entry -> entry.timestamp, timestamp);
+	}
+
+	/**
+	 * @param position a position in the destination
+	 * @return the last entry at or before the position, or null if there are none
+	 */
+	public Entry floorPosition(long position) throws IOException {
+		return floor(entry -> entry.position, position);
+	}
+
+	/**
+	 * Add an entry to the end of the index. Not thread safe: there should be one
+	 * producer per index.
+	 */
+	public void append(long sequence, long timestamp, long position)
+			throws IOException {
+		if (this.output == null) {
+			this.output = new RandomAccessFile(this.file, "rw");
+			// Drop a partial entry left by a crash
+			long count = this.output.length() / ENTRY_LENGTH;
+			this.output.setLength(count * ENTRY_LENGTH);
+			if (count > 0) {
+				this.lastTimestamp = read(this.output, count - 1).timestamp;
+			}
+			this.output.seek(count * ENTRY_LENGTH);
+		}
+		// Clocks can go backwards, but the index has to stay in order
+		this.lastTimestamp = Math.max(this.lastTimestamp, timestamp);
+		byte[] bytes = new byte[ENTRY_LENGTH];
+		ByteBuffer.wrap(bytes).putLong(sequence).putLong(this.lastTimestamp)
+				.putLong(position);
+		this.output.write(bytes);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (this.output != null) {
+			this.output.close();
+			this.output = null;
+		}
+	}
+
+	private Entry floor(ToLongFunction<Entry> key, long value) throws IOException {
+		try (RandomAccessFile input = open()) {
+			if (input == null) {
+				return null;
+			}
+			long low = 0;
+			long high = input.length() / ENTRY_LENGTH - 1;
+			Entry result = null;
+			while (low <= high) {
+				long middle = (low + high) >>> 1;
+				Entry entry = read(input, middle);
+				if (key.applyAsLong(entry) <= value) {
+					result = entry;
+					low = middle + 1;
+				}
+				else {
+					high = middle - 1;
+				}
+			}
+			return result;
+		}
+	}
+
+	private RandomAccessFile open() throws IOException {
+		if (!this.file.exists()) {
+			return null;
+		}
+		return new RandomAccessFile(this.file, "r");
+	}
+
+	private Entry read(RandomAccessFile input, long index) throws IOException {
+		input.seek(index * ENTRY_LENGTH);
+		try {
+			return new Entry(input.readLong(), input.readLong(), input.readLong());
+		}
+		catch (EOFException e) {
+			throw new IOException("Truncated index: " + this.file, e);
+		}
+	}
+
+	/**
+	 * An index entry: the sequence number of a message, the time it was written and
+	 * its position in the destination.
+	 */
+	static class Entry {
+
+		final long sequence;
+
+		final long timestamp;
+
+		final long position;
+
+		Entry(long sequence, long timestamp, long position) {
+			this.sequence = sequence;
+			this.timestamp = timestamp;
+			this.position = position;
+		}
+
+	}
+
+}
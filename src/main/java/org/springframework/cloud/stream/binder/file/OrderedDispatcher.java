@@ -0,0 +1,253 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.binder.file;
+
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessagingException;
+import org.springframework.util.ErrorHandler;
+
+/**
+ * A {@link MessageChannel} that hands messages off to a fixed set of worker threads,
+ * each of which sends them on to the target channel in the order they were received.
+ * Messages with the same value of the ordering header always go to the same worker,
+ * so their relative order is preserved. Messages without one are spread round robin
+ * across the workers, with no ordering guarantees. Senders block if the worker queue
+ * is full, so a slow target slows down the reader instead of buffering without limit.
+ * <p>
+ * Each worker counts the messages it has handled, so the reader can find out (with
+ * {@link #mark(long)}) how far through its input everything has been handled, and
+ * only commit that far. A message that fails is passed to the error handler, and if
+ * there isn't one (or it fails too) the worker carries on but stops counting, so the
+ * message is delivered again after a restart.
+ *
+ * @author Dave Syer
+ *
+ */
+class OrderedDispatcher implements MessageChannel {
+
+	private static Log logger = LogFactory.getLog(OrderedDispatcher.class);
+
+	private static final long IDLE_MILLIS = 100L;
+
+	private final MessageChannel target;
+
+	private final String header;
+
+	private final RingBuffer<Message<?>>[] queues;
+
+	private final AtomicInteger counter = new AtomicInteger();
+
+	private final ErrorHandler errorHandler;
+
+	private volatile boolean running = true;
+
+	/**
+	 * The number of messages sent to each worker (only used by the sender).
+	 */
+	private final long[] sent;
+
+	/**
+	 * The number of messages each worker has handled (or passed to the error handler).
+	 */
+	private final AtomicLongArray handled;
+
+	/**
+	 * A position whose messages were all sent when the counts were taken, waiting for
+	 * the workers to catch up (only used by the sender).
+	 */
+	private long[] pending;
+
+	private long pendingPosition = -1;
+
+	private long completed = -1;
+
+	/**
+	 * @param target the channel to send messages on to
+	 * @param concurrency the number of worker threads
+	 * @param header the name of the header used to order messages (may be null)
+	 * @param bufferSize the size of the queue for each worker
+	 * @param executor the executor to run the workers (should have enough threads for
+	 * all of them)
+	 * @param errorHandler the handler for messages that fail (may be null)
+	 */
+	@SuppressWarnings("unchecked")
+	public OrderedDispatcher(MessageChannel target, int concurrency, String header,
+			int bufferSize, ExecutorService executor, ErrorHandler errorHandler) {
+		this.target = target;
+		this.header = header;
+		this.errorHandler = errorHandler;
+		this.queues = new RingBuffer[concurrency];
+		this.sent = new long[concurrency];
+		this.handled = new AtomicLongArray(concurrency);
+		for (int i = 0; i < concurrency; i++) {
+			RingBuffer<Message<?>> queue = new RingBuffer<>(bufferSize,
+					OverflowPolicy.BLOCK);
+			this.queues[i] = queue;
+			int worker = i;
+			executor.submit(() -> work(worker, queue));
+		}
+	}
+
+	@Override
+	public boolean send(Message<?> message) {
+		return send(message, -1);
+	}
+
+	@Override
+	public boolean send(Message<?> message, long timeout) {
+		if (!this.running) {
+			// Stopped while the sender was busy, so there may be no workers left
+			handle(message);
+			return true;
+		}
+		try {
+			int worker = select(message);
+			boolean sent = this.queues[worker].put(message);
+			if (sent) {
+				this.sent[worker]++;
+			}
+			return sent;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * @return true if this dispatcher sends to the target in the same way as a new one
+	 * created with the same arguments would
+	 */
+	public boolean isFor(MessageChannel target, int concurrency, String header) {
+		return this.target == target && this.queues.length == concurrency
+				&& Objects.equals(this.header, header);
+	}
+
+	/**
+	 * Let the workers finish the messages they have been given and then stop. Anything
+	 * sent after that is handled by the sender.
+	 */
+	public void stop() {
+		this.running = false;
+	}
+
+	/**
+	 * Called by the sender (which must be a single thread) when it has sent all the
+	 * messages before a position in its input, or is waiting for more there, to find
+	 * out how far the workers have got.
+	 *
+	 * @param position the position in the input after the last message sent
+	 * @return the position before which all the messages have been handled, or -1 if
+	 * there is none yet
+	 */
+	public long mark(long position) {
+		if (this.pending != null && isHandled(this.pending)) {
+			this.completed = this.pendingPosition;
+			this.pending = null;
+		}
+		if (this.pending == null && position > this.completed) {
+			// Only one at a time, so that this is cheap to call for every record
+			long[] counts = this.sent.clone();
+			if (isHandled(counts)) {
+				this.completed = position;
+			}
+			else {
+				this.pending = counts;
+				this.pendingPosition = position;
+			}
+		}
+		return this.completed;
+	}
+
+	private boolean isHandled(long[] counts) {
+		for (int i = 0; i < counts.length; i++) {
+			if (this.handled.get(i) < counts[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int select(Message<?> message) {
+		Object key = this.header == null ? null
+				: message.getHeaders().get(this.header);
+		int hash = key != null ? key.hashCode() : this.counter.getAndIncrement();
+		return Math.floorMod(hash, this.queues.length);
+	}
+
+	private void work(int worker, RingBuffer<Message<?>> queue) {
+		boolean failed = false;
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				Message<?> message = queue.poll(IDLE_MILLIS, TimeUnit.MILLISECONDS);
+				if (message == null) {
+					if (!this.running) {
+						break;
+					}
+					continue;
+				}
+				if (!handle(message)) {
+					// Never count past it, so it is delivered again after a restart
+					failed = true;
+				}
+				if (!failed) {
+					this.handled.incrementAndGet(worker);
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return true if the message was handled (or the error handler dealt with it)
+	 */
+	private boolean handle(Message<?> message) {
+		try {
+			this.target.send(message);
+			return true;
+		}
+		catch (Exception e) {
+			if (this.errorHandler != null) {
+				try {
+					this.errorHandler.handleError(e instanceof MessagingException ? e
+							: new MessagingException(message, "Failed to dispatch", e));
+					return true;
+				}
+				catch (Exception handlerFailure) {
+					logger.error("Error handler failed for: " + message,
+							handlerFailure);
+				}
+			}
+			logger.error("Failed to dispatch (it will be delivered again after a restart): "
+					+ message, e);
+			return false;
+		}
+	}
+
+}
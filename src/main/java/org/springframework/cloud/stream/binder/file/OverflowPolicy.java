@@ -0,0 +1,47 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.binder.file;
+
+/**
+ * What to do when a message is sent to a destination whose buffer is full.
+ *
+ * @author Dave Syer
+ *
+ */
+public enum OverflowPolicy {
+
+	/**
+	 * Block the sender until there is space in the buffer (the default).
+	 */
+	BLOCK,
+
+	/**
+	 * Reject the message with an exception.
+	 */
+	FAIL,
+
+	/**
+	 * Discard the oldest message in the buffer to make room.
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * Discard the message being sent.
+	 */
+	DROP_NEWEST;
+
+}
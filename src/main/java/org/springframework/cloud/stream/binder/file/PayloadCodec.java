@@ -0,0 +1,153 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.binder.file;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.springframework.integration.codec.Codec;
+import org.springframework.util.ClassUtils;
+
+/**
+ * Encodes and decodes payloads that are neither strings nor byte arrays with a
+ * {@link Codec} (e.g. Kryo), so that objects survive a round trip through the binary
+ * record format. The type name of each class is worked out once and cached for
+ * encoding, and so is the class (or its absence) for each type name for decoding, so
+ * the per-message cost is only that of the codec itself. The type names come from the
+ * records, so only classes that have been {@link #setTrustedTypes(String...) trusted}
+ * are decoded: anything else is left as bytes.
+ *
+ * @author Dave Syer
+ *
+ */
+class PayloadCodec {
+
+	private static Log logger = LogFactory.getLog(PayloadCodec.class);
+
+	private final Codec codec;
+
+	private final ClassLoader classLoader;
+
+	private final Map<Class<?>, byte[]> names = new ConcurrentHashMap<>();
+
+	// Empty for a type that is not trusted or not available, so it is not looked up again
+	private final Map<String, Optional<Class<?>>> types = new ConcurrentHashMap<>();
+
+	private volatile Set<String> trusted = Collections.emptySet();
+
+	public PayloadCodec(Codec codec) {
+		this.codec = codec;
+		this.classLoader = ClassUtils.getDefaultClassLoader();
+	}
+
+	/**
+	 * @param trusted the names of the classes that can be decoded, or of their packages
+	 * followed by ".*" (e.g. "com.example.*", which includes sub-packages), or "*" to
+	 * trust all of them
+	 */
+	public void setTrustedTypes(String... trusted) {
+		this.trusted = new LinkedHashSet<>(Arrays.asList(trusted));
+		this.types.clear();
+	}
+
+	/**
+	 * @param payload a message payload
+	 * @return true if the payload should be encoded by the codec
+	 */
+	public boolean isSupported(Object payload) {
+		return !(payload instanceof byte[]) && !(payload instanceof String);
+	}
+
+	/**
+	 * @param type the class of a payload
+	 * @return the UTF-8 bytes of its type name
+	 */
+	public byte[] type(Class<?> type) {
+		return this.names.computeIfAbsent(type,
+				key -> key.getName().getBytes(StandardCharsets.UTF_8));
+	}
+
+	public byte[] encode(Object payload) {
+		try {
+			return this.codec.encode(payload);
+		}
+		catch (IOException e) {
+			throw new IllegalStateException(
+					"Cannot encode payload of type " + payload.getClass().getName(), e);
+		}
+	}
+
+	/**
+	 * @param type the type name of the payload
+	 * @param bytes the encoded payload
+	 * @return the decoded payload, or null if the type is not trusted or not available
+	 * here, or if the codec cannot decode the bytes (so the caller keeps them as they
+	 * are)
+	 */
+	public Object decode(String type, byte[] bytes) {
+		Optional<Class<?>> resolved = this.types.computeIfAbsent(type, this::resolve);
+		if (!resolved.isPresent()) {
+			return null;
+		}
+		try {
+			return this.codec.decode(bytes, resolved.get());
+		}
+		catch (IOException | RuntimeException e) {
+			logger.warn("Cannot decode payload of type " + type, e);
+			return null;
+		}
+	}
+
+	private Optional<Class<?>> resolve(String type) {
+		if (!isTrusted(type)) {
+			logger.warn("Not decoding payloads of untrusted type: " + type);
+			return Optional.empty();
+		}
+		try {
+			return Optional.of(ClassUtils.forName(type, this.classLoader));
+		}
+		catch (ClassNotFoundException | LinkageError e) {
+			logger.warn("Not decoding payloads of unavailable type: " + type);
+			return Optional.empty();
+		}
+	}
+
+	private boolean isTrusted(String type) {
+		Set<String> trusted = this.trusted;
+		if (trusted.contains("*") || trusted.contains(type)) {
+			return true;
+		}
+		for (String name : trusted) {
+			if (name.endsWith(".*")
+					&& type.startsWith(name.substring(0, name.length() - 1))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
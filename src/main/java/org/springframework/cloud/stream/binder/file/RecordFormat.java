@@ -0,0 +1,46 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.binder.file;
+
+/**
+ * The encoding used by a producer to write messages to a destination. Consumers can
+ * read any format (and a mixture of them) without being told which one to expect.
+ *
+ * @author Dave Syer
+ *
+ */
+public enum RecordFormat {
+
+	/**
+	 * Human readable lines, with optional <code>#headers</code> and
+	 * <code>#payload</code> sections (the default).
+	 */
+	TEXT,
+
+	/**
+	 * Length-prefixed binary records carrying the raw payload bytes (see
+	 * {@link BinaryRecords}).
+	 */
+	BINARY,
+
+	/**
+	 * Blocks of binary records compressed with a {@link java.util.zip.Deflater} (see
+	 * {@link CompressedBlocks}).
+	 */
+	COMPRESSED;
+
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.binder.file;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads records from a channel, either UTF-8 lines or binary records (see
+ * {@link BinaryRecords}), keeping track of the byte position of the next unread record.
+ * Unlike a {@link java.io.BufferedReader} a partial record at the end of the input is
+ * not returned, but kept until the rest of it arrives, so it is safe to use for tailing
+ * a file that is still being written.
+ * <p>
+ * The data is read into a direct buffer that is reused (and only grows if a record does
+ * not fit in it), and callers can find the boundaries of records by
+ * {@link #scanLine(int) scanning} lines relative to the start of the next record
+ * without decoding anything. Bytes are only decoded into strings when a caller asks for
+ * them, and then via a scratch array that is also reused.
+ *
+ * @author Dave Syer
+ *
+ */
+class RecordReader implements Closeable {
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private final ReadableByteChannel channel;
+
+	/**
+	 * Unread data between position and limit.
+	 */
+	private ByteBuffer buffer;
+
+	private byte[] scratch = new byte[256];
+
+	private int scanFrom = -1;
+
+	private int scanned;
+
+	private long position;
+
+	/**
+	 * @param channel the input channel
+	 * @param position the byte position of the channel in the underlying source
+	 */
+	public RecordReader(ReadableByteChannel channel, long position) {
+		this.channel = channel;
+		this.position = position;
+		this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		this.buffer.flip();
+	}
+
+	/**
+	 * @param records a buffer containing all the records to read (between its position
+	 * and limit)
+	 */
+	public RecordReader(ByteBuffer records) {
+		this.channel = null;
+		this.buffer = records;
+	}
+
+	/**
+	 * @return the byte position of the start of the next record
+	 */
+	public long getPosition() {
+		return this.position;
+	}
+
+	/**
+	 * @return the next byte, without consuming it, or -1 if there is none available yet
+	 */
+	public int peek() throws IOException {
+		if (!available(1)) {
+			return -1;
+		}
+		return this.buffer.get(this.buffer.position()) & 0xff;
+	}
+
+	/**
+	 * Find the end of a line without consuming anything.
+	 *
+	 * @param from the offset of the start of the line relative to the start of the next
+	 * record
+	 * @return the offset of the start of the following line (just after the line
+	 * terminator), or -1 if the line is not complete yet
+	 */
+	public int scanLine(int from) throws IOException {
+		int start = this.buffer.position();
+		int i = from == this.scanFrom ? this.scanned : from;
+		while (true) {
+			for (; start + i < this.buffer.limit(); i++) {
+				if (this.buffer.get(start + i) == '\n') {
+					this.scanFrom = -1;
+					return i + 1;
+				}
+			}
+			// Don't scan the same bytes again if asked for the same line next time
+			this.scanFrom = from;
+			this.scanned = i;
+			if (!fill()) {
+				return -1;
+			}
+			start = this.buffer.position();
+		}
+	}
+
+	/**
+	 * @param from the offset of the start of a line (relative to the start of the next
+	 * record)
+	 * @param end the offset just after the line terminator
+	 * @param text the expected line (ASCII)
+	 * @return true if the line (without its terminator) is equal to the text provided
+	 */
+	public boolean lineEquals(int from, int end, String text) {
+		int length = lineLength(from, end);
+		if (length != text.length()) {
+			return false;
+		}
+		int start = this.buffer.position() + from;
+		for (int i = 0; i < length; i++) {
+			if (this.buffer.get(start + i) != text.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the length of a line without its terminator
+	 */
+	public int lineLength(int from, int end) {
+		int length = end - from - 1;
+		int last = this.buffer.position() + from + length - 1;
+		if (length > 0 && this.buffer.get(last) == '\r') {
+			length--;
+		}
+		return length;
+	}
+
+	/**
+	 * @param from the offset of a byte relative to the start of the next record
+	 * @return the byte at that offset (which must have been scanned already)
+	 */
+	public byte get(int from) {
+		return this.buffer.get(this.buffer.position() + from);
+	}
+
+	/**
+	 * Decode some bytes (which must have been scanned already) as UTF-8.
+	 *
+	 * @param from the offset of the first byte relative to the start of the next record
+	 * @param length the number of bytes
+	 * @return the decoded string
+	 */
+	public String decode(int from, int length) {
+		if (length == 0) {
+			return "";
+		}
+		if (this.buffer.hasArray()) {
+			return new String(this.buffer.array(),
+					this.buffer.arrayOffset() + this.buffer.position() + from, length,
+					StandardCharsets.UTF_8);
+		}
+		if (this.scratch.length < length) {
+			this.scratch = new byte[Math.max(length, this.scratch.length * 2)];
+		}
+		ByteBuffer source = this.buffer.duplicate();
+		source.position(this.buffer.position() + from);
+		source.get(this.scratch, 0, length);
+		return new String(this.scratch, 0, length, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Move on to the next record.
+	 *
+	 * @param length the number of bytes to consume (which must have been scanned
+	 * already)
+	 */
+	public void consume(int length) {
+		this.buffer.position(this.buffer.position() + length);
+		this.position += length;
+		this.scanFrom = -1;
+	}
+
+	/**
+	 * @return the next complete line without its terminator, or null if there is none
+	 * available yet
+	 */
+	public String readLine() throws IOException {
+		int end = scanLine(0);
+		if (end < 0) {
+			return null;
+		}
+		String result = decode(0, lineLength(0, end));
+		consume(end);
+		return result;
+	}
+
+	/**
+	 * @return true if a complete line was skipped, or false if there is none available
+	 * yet
+	 */
+	public boolean skipLine() throws IOException {
+		int end = scanLine(0);
+		if (end < 0) {
+			return false;
+		}
+		consume(end);
+		return true;
+	}
+
+	/**
+	 * @return the next complete binary record or compressed block (including its
+	 * prefix), or null if there is none available yet
+	 */
+	public byte[] readBinary() throws IOException {
+		int length = binaryLength();
+		if (length < 0) {
+			return null;
+		}
+		byte[] result = new byte[length];
+		this.buffer.get(result);
+		this.position += length;
+		this.scanFrom = -1;
+		return result;
+	}
+
+	/**
+	 * @return true if a complete binary record or compressed block was skipped, or false
+	 * if there is none available yet
+	 */
+	public boolean skipBinary() throws IOException {
+		int length = binaryLength();
+		if (length < 0) {
+			return false;
+		}
+		consume(length);
+		return true;
+	}
+
+	/**
+	 * Skip a record whose length is already known (e.g. because it was written by this
+	 * process), without scanning it.
+	 *
+	 * @param length the length of the record
+	 * @return true if the record was skipped, or false if it is not all available yet
+	 */
+	public boolean skip(int length) throws IOException {
+		if (!available(length)) {
+			return false;
+		}
+		consume(length);
+		return true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (this.channel != null) {
+			this.channel.close();
+		}
+	}
+
+	private int binaryLength() throws IOException {
+		if (!available(BinaryRecords.PREFIX_LENGTH)) {
+			return -1;
+		}
+		int start = this.buffer.position();
+		int magic = this.buffer.get(start) & 0xff;
+		if (magic != BinaryRecords.MAGIC && magic != CompressedBlocks.MAGIC) {
+			throw new IllegalStateException("Not a binary record (magic=" + magic + ")");
+		}
+		int length = BinaryRecords.PREFIX_LENGTH + this.buffer.getInt(start + 1);
+		if (!available(length)) {
+			return -1;
+		}
+		return length;
+	}
+
+	private boolean available(int length) throws IOException {
+		while (this.buffer.remaining() < length) {
+			if (!fill()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Read more data into the buffer, compacting or growing it if necessary.
+	 *
+	 * @return true if some data was read
+	 */
+	private boolean fill() throws IOException {
+		if (this.channel == null) {
+			return false;
+		}
+		if (this.buffer.position() == 0
+				&& this.buffer.limit() == this.buffer.capacity()) {
+			ByteBuffer bigger = ByteBuffer.allocateDirect(this.buffer.capacity() * 2);
+			bigger.put(this.buffer);
+			this.buffer = bigger;
+		}
+		else {
+			this.buffer.compact();
+		}
+		int count;
+		try {
+			count = this.channel.read(this.buffer);
+		}
+		finally {
+			this.buffer.flip();
+		}
+		return count > 0;
+	}
+
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.binder.file;
+
+/**
+ * What to do with old segments when they are removed from a destination with segmented
+ * storage.
+ *
+ * @author Dave Syer
+ *
+ */
+public enum RetentionAction {
+
+	/**
+	 * Delete the segment file.
+	 */
+	DELETE,
+
+	/**
+	 * Move the segment file into an <code>archive</code> directory next to the other
+	 * segments.
+	 */
+	ARCHIVE;
+
+}
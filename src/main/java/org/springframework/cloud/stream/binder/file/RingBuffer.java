@@ -0,0 +1,237 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.binder.file;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free queue backed by a ring of slots, each with its own sequence
+ * number (after Dmitry Vyukov's bounded MPMC queue). Producers and consumers only
+ * touch a monitor when the other side is actually waiting, so the fast path is a
+ * couple of CAS operations. What happens when a producer finds the ring full is
+ * decided by an {@link OverflowPolicy}.
+ *
+ * @author Dave Syer
+ *
+ */
+class RingBuffer<E> {
+
+	private final AtomicReferenceArray<E> items;
+
+	private final AtomicLongArray sequences;
+
+	private final int mask;
+
+	private final AtomicLong head = new AtomicLong();
+
+	private final AtomicLong tail = new AtomicLong();
+
+	private final OverflowPolicy policy;
+
+	private final Object notEmpty = new Object();
+
+	private final Object notFull = new Object();
+
+	private final AtomicInteger waitingConsumers = new AtomicInteger();
+
+	private final AtomicInteger waitingProducers = new AtomicInteger();
+
+	/**
+	 * @param capacity the minimum capacity (rounded up to a power of 2)
+	 * @param policy what to do when the buffer is full
+	 */
+	public RingBuffer(int capacity, OverflowPolicy policy) {
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		this.items = new AtomicReferenceArray<>(size);
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			this.sequences.set(i, i);
+		}
+		this.mask = size - 1;
+		this.policy = policy;
+	}
+
+	public int capacity() {
+		return this.mask + 1;
+	}
+
+	/**
+	 * @return the number of items in the buffer (approximate if it is changing)
+	 */
+	public int size() {
+		long size = this.tail.get() - this.head.get();
+		return (int) Math.max(0, Math.min(size, capacity()));
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	public boolean isFull() {
+		return size() >= capacity();
+	}
+
+	/**
+	 * Add an item if there is space, without blocking.
+	 *
+	 * @return true if the item was added
+	 */
+	public boolean offer(E item) {
+		long position = this.tail.get();
+		while (true) {
+			int index = (int) position & this.mask;
+			long difference = this.sequences.get(index) - position;
+			if (difference == 0) {
+				if (this.tail.compareAndSet(position, position + 1)) {
+					this.items.set(index, item);
+					this.sequences.set(index, position + 1);
+					signal(this.waitingConsumers, this.notEmpty);
+					return true;
+				}
+			}
+			else if (difference < 0) {
+				return false;
+			}
+			position = this.tail.get();
+		}
+	}
+
+	/**
+	 * Add an item, applying the overflow policy if the buffer is full.
+	 *
+	 * @return true if the item was added, false if it was rejected or dropped
+	 */
+	public boolean put(E item) throws InterruptedException {
+		if (offer(item)) {
+			return true;
+		}
+		switch (this.policy) {
+		case FAIL:
+		case DROP_NEWEST:
+			return false;
+		case DROP_OLDEST:
+			while (!offer(item)) {
+				poll();
+			}
+			return true;
+		default:
+			this.waitingProducers.incrementAndGet();
+			try {
+				// Never hold a monitor while offering, or a consumer signalling from
+				// inside poll() could deadlock with us. A consumer that frees a slot
+				// after we are counted as waiting always signals, and one that freed it
+				// before is seen by the check, so the wait needs no timeout.
+				while (!offer(item)) {
+					synchronized (this.notFull) {
+						if (isFull()) {
+							this.notFull.wait();
+						}
+					}
+				}
+			}
+			finally {
+				this.waitingProducers.decrementAndGet();
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Remove an item without blocking.
+	 *
+	 * @return the oldest item or null if the buffer is empty
+	 */
+	public E poll() {
+		long position = this.head.get();
+		while (true) {
+			int index = (int) position & this.mask;
+			long difference = this.sequences.get(index) - (position + 1);
+			if (difference == 0) {
+				if (this.head.compareAndSet(position, position + 1)) {
+					E item = this.items.getAndSet(index, null);
+					this.sequences.set(index, position + this.mask + 1);
+					signal(this.waitingProducers, this.notFull);
+					return item;
+				}
+			}
+			else if (difference < 0) {
+				return null;
+			}
+			position = this.head.get();
+		}
+	}
+
+	/**
+	 * Remove an item, waiting up to the timeout provided for one to arrive.
+	 *
+	 * @return the oldest item or null if the timeout expired
+	 */
+	public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+		E item = poll();
+		if (item != null) {
+			return item;
+		}
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		this.waitingConsumers.incrementAndGet();
+		try {
+			while ((item = poll()) == null) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					return null;
+				}
+				synchronized (this.notEmpty) {
+					if (isEmpty()) {
+						TimeUnit.NANOSECONDS.timedWait(this.notEmpty, remaining);
+					}
+				}
+			}
+			return item;
+		}
+		finally {
+			this.waitingConsumers.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Remove up to the number of items provided without blocking.
+	 *
+	 * @return the number of items transferred
+	 */
+	public int drainTo(Collection<? super E> target, int max) {
+		int count = 0;
+		E item;
+		while (count < max && (item = poll()) != null) {
+			target.add(item);
+			count++;
+		}
+		return count;
+	}
+
+	private void signal(AtomicInteger waiting, Object monitor) {
+		if (waiting.get() > 0) {
+			synchronized (monitor) {
+				monitor.notifyAll();
+			}
+		}
+	}
+
+}
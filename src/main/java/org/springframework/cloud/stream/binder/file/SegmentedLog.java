@@ -0,0 +1,422 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.binder.file;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * An append-only log stored as a directory of fixed-size, memory-mapped segment files.
+ * Each record is an <code>int</code> length followed by that many bytes. A length of
+ * zero means nothing has been written there yet, and a negative length marks the end
+ * of a segment, telling readers to move on to the next one. A position in the log is
+ * expressed as a single <code>long</code> offset, with the segment index in the high 32
+ * bits and the byte position in the segment in the low 32 bits.
+ * <p>
+ * Segments can also be rolled over after a fixed time, and old segments can be deleted
+ * or archived by {@link #retain(long, long, RetentionAction)} while the log is in use.
+ * Readers that find their segment has gone skip ahead to the oldest one remaining.
+ *
+ * @author Dave Syer
+ *
+ */
+class SegmentedLog {
+
+	private static Log logger = LogFactory.getLog(SegmentedLog.class);
+
+	private static final int END_OF_SEGMENT = -1;
+
+	private static final String SUFFIX = ".log";
+
+	private static final String ARCHIVE = "archive";
+
+	/**
+	 * The offset up to which each log that has an appender in this JVM has been written.
+	 * Plain stores to a mapped buffer can be seen in any order by other threads, so
+	 * readers only read records that are covered by it, which guarantees that they see
+	 * the whole payload.
+	 */
+	private static final Map<File, AtomicLong> published = new ConcurrentHashMap<>();
+
+	private final File directory;
+
+	private final File key;
+
+	private final int segmentSize;
+
+	private long rollMillis;
+
+	public SegmentedLog(File directory, int segmentSize) {
+		this.directory = directory;
+		this.key = directory.getAbsoluteFile();
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * @param rollMillis the maximum time an appender writes to one segment before
+	 * rolling over to the next, even if it is not full (0 means only roll when full)
+	 */
+	public void setRollMillis(long rollMillis) {
+		this.rollMillis = rollMillis;
+	}
+
+	public File getDirectory() {
+		return this.directory;
+	}
+
+	public Appender appender() throws IOException {
+		this.directory.mkdirs();
+		return new Appender();
+	}
+
+	public Reader reader() {
+		return new Reader(0L);
+	}
+
+	/**
+	 * @param offset the offset of the first record to read (as returned from
+	 * {@link Reader#getOffset()}), or 0 to start from the beginning
+	 * @return a reader
+	 */
+	public Reader reader(long offset) {
+		return new Reader(offset);
+	}
+
+	/**
+	 * Delete or archive the oldest segments until the log is within the limits
+	 * provided. The newest segment is never removed, because an appender might be
+	 * writing to it.
+	 *
+	 * @param maxBytes the maximum total size of the segments (0 for no limit)
+	 * @param maxAgeMillis the maximum time since a segment was last written (0 for no
+	 * limit)
+	 * @param action what to do with segments that are removed
+	 * @return the number of segments removed
+	 */
+	public int retain(long maxBytes, long maxAgeMillis, RetentionAction action)
+			throws IOException {
+		long[] indexes = segments();
+		long total = 0;
+		for (long index : indexes) {
+			total += segment(index).length();
+		}
+		long cutoff = System.currentTimeMillis() - maxAgeMillis;
+		int count = 0;
+		for (int i = 0; i < indexes.length - 1; i++) {
+			File file = segment(indexes[i]);
+			long length = file.length();
+			if (!(maxBytes > 0 && total > maxBytes)
+					&& !(maxAgeMillis > 0 && file.lastModified() < cutoff)) {
+				break;
+			}
+			if (!remove(file, action)) {
+				// Maybe still mapped (e.g. on Windows), so try again next time
+				logger.debug("Cannot remove segment: " + file);
+				break;
+			}
+			total -= length;
+			count++;
+		}
+		return count;
+	}
+
+	private boolean remove(File file, RetentionAction action) throws IOException {
+		if (action == RetentionAction.ARCHIVE) {
+			File archive = new File(this.directory, ARCHIVE);
+			archive.mkdirs();
+			logger.info("Archiving segment: " + file);
+			return file.renameTo(new File(archive, file.getName()));
+		}
+		logger.info("Deleting segment: " + file);
+		return file.delete();
+	}
+
+	/**
+	 * @return the indexes of all the segments in order
+	 */
+	private long[] segments() {
+		File[] files = this.directory.listFiles();
+		if (files == null) {
+			return new long[0];
+		}
+		long[] result = new long[files.length];
+		int count = 0;
+		for (File file : files) {
+			long index = index(file);
+			if (index >= 0) {
+				result[count++] = index;
+			}
+		}
+		result = Arrays.copyOf(result, count);
+		Arrays.sort(result);
+		return result;
+	}
+
+	/**
+	 * @return the index of the segment or -1 if the file is not a segment
+	 */
+	private static long index(File file) {
+		String name = file.getName();
+		if (!file.isFile() || !name.endsWith(SUFFIX)) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+		}
+		catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private File segment(long index) {
+		return new File(this.directory, String.format("%020d", index) + SUFFIX);
+	}
+
+	/**
+	 * @param last true to find the highest index, false for the lowest
+	 * @return the index of the first or last segment, or -1 if there are none
+	 */
+	private long findSegment(boolean last) {
+		long[] indexes = segments();
+		if (indexes.length == 0) {
+			return -1;
+		}
+		return last ? indexes[indexes.length - 1] : indexes[0];
+	}
+
+	/**
+	 * Writes records to the end of the log, rolling over to a new segment when the
+	 * current one is full. Not thread safe: there should be one appender per log.
+	 */
+	class Appender implements Closeable {
+
+		private final AtomicLong offset;
+
+		private long index;
+
+		private MappedByteBuffer buffer;
+
+		private long opened;
+
+		private Appender() throws IOException {
+			this.index = Math.max(findSegment(true), 0);
+			open();
+			int position = 0;
+			int length;
+			while (position <= segmentSize - 4
+					&& (length = this.buffer.getInt(position)) != 0) {
+				if (length < 0) {
+					this.index++;
+					open();
+					position = 0;
+					continue;
+				}
+				position += 4 + length;
+			}
+			this.buffer.position(position);
+			this.offset = new AtomicLong(getOffset());
+			published.put(key, this.offset);
+		}
+
+		public void append(byte[] bytes) throws IOException {
+			roll(bytes.length);
+			int position = this.buffer.position();
+			this.buffer.position(position + 4);
+			this.buffer.put(bytes);
+			// Publish the length last so readers never see a partial record. Readers in
+			// this JVM wait for the offset (a volatile write after the payload), and the
+			// atomic update is a full fence, so the length is not stored before the
+			// payload for readers in other processes either.
+			this.offset.getAndSet(getOffset());
+			this.buffer.putInt(position, bytes.length);
+		}
+
+		/**
+		 * Roll over to a new segment if a record of the length provided would not fit
+		 * in the current one, or it is too old. Callers that need to know which
+		 * segment a record will land in can call this before {@link #append(byte[])}.
+		 *
+		 * @param length the length of the next record
+		 * @return true if a new segment was started
+		 */
+		public boolean roll(int length) throws IOException {
+			if (length + 8 > segmentSize) {
+				throw new IllegalArgumentException("Record of length " + length
+						+ " does not fit in segments of size " + segmentSize);
+			}
+			int position = this.buffer.position();
+			if (position + 4 + length > segmentSize - 4 || position > 0 && rollMillis > 0
+					&& System.currentTimeMillis() - this.opened >= rollMillis) {
+				this.buffer.putInt(position, END_OF_SEGMENT);
+				// Mapped writes don't reliably update the modified time, which
+				// retention uses as the age of the segment
+				segment(this.index).setLastModified(System.currentTimeMillis());
+				this.index++;
+				open();
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * @return the offset of the next record (if it fits in the current segment)
+		 */
+		public long getOffset() {
+			return this.index << 32 | this.buffer.position();
+		}
+
+		public void force() {
+			this.buffer.force();
+		}
+
+		@Override
+		public void close() {
+			this.buffer = null;
+			published.remove(key, this.offset);
+		}
+
+		private void open() throws IOException {
+			try (RandomAccessFile file = new RandomAccessFile(segment(this.index),
+					"rw")) {
+				if (file.length() < segmentSize) {
+					file.setLength(segmentSize);
+				}
+				this.buffer = file.getChannel().map(MapMode.READ_WRITE, 0, segmentSize);
+			}
+			this.opened = System.currentTimeMillis();
+		}
+
+	}
+
+	/**
+	 * Reads records from the start of the log, following the appender across segments.
+	 */
+	class Reader implements Closeable {
+
+		private long index = -1;
+
+		private int start;
+
+		private MappedByteBuffer buffer;
+
+		private Reader(long offset) {
+			if (offset > 0) {
+				this.index = offset >>> 32;
+				this.start = (int) offset;
+			}
+		}
+
+		/**
+		 * @return the offset of the next record
+		 */
+		public long getOffset() {
+			if (this.index < 0) {
+				return 0L;
+			}
+			int position = this.buffer == null ? this.start : this.buffer.position();
+			return this.index << 32 | position;
+		}
+
+		/**
+		 * @return the next record or null if there is none available yet
+		 */
+		public byte[] next() throws IOException {
+			if (this.buffer == null && !open()) {
+				return null;
+			}
+			int position = this.buffer.position();
+			if (position > segmentSize - 4) {
+				return null;
+			}
+			// Read before the length, so it covers the payload of any record it covers
+			AtomicLong appended = published.get(key);
+			long limit = appended == null ? Long.MAX_VALUE : appended.get();
+			int length = this.buffer.getInt(position);
+			if (length == 0 || length > 0
+					&& (this.index << 32 | position + 4 + length) > limit) {
+				// Nothing there yet (or not published to this thread yet)
+				return null;
+			}
+			if (length < 0) {
+				File next = segment(this.index + 1);
+				if (next.exists() ? next.length() < segmentSize
+						: findSegment(false) <= this.index + 1) {
+					// Not there yet (unless removed by retention, in which case
+					// open() skips ahead)
+					return null;
+				}
+				this.index++;
+				this.start = 0;
+				this.buffer = null;
+				return next();
+			}
+			byte[] bytes = new byte[length];
+			this.buffer.position(position + 4);
+			this.buffer.get(bytes);
+			return bytes;
+		}
+
+		@Override
+		public void close() {
+			this.buffer = null;
+		}
+
+		private boolean open() throws IOException {
+			if (this.index < 0) {
+				this.index = findSegment(false);
+				if (this.index < 0) {
+					return false;
+				}
+			}
+			File file = segment(this.index);
+			if (!file.exists()) {
+				long first = findSegment(false);
+				if (first <= this.index) {
+					return false;
+				}
+				// Our segment has been removed by retention, so skip ahead
+				logger.warn("Segment " + file + " no longer exists, skipping to " + first);
+				this.index = first;
+				this.start = 0;
+				file = segment(this.index);
+			}
+			if (file.length() < segmentSize) {
+				return false;
+			}
+			try (RandomAccessFile stream = new RandomAccessFile(file, "r")) {
+				FileChannel channel = stream.getChannel();
+				this.buffer = channel.map(MapMode.READ_ONLY, 0, segmentSize);
+			}
+			this.buffer.position(Math.min(this.start, segmentSize));
+			return true;
+		}
+
+	}
+
+}
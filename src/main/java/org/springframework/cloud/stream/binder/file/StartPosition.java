@@ -0,0 +1,49 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.binder.file;
+
+/**
+ * Where a consumer starts reading a destination when it has no committed offset.
+ *
+ * @author Dave Syer
+ *
+ */
+public enum StartPosition {
+
+	/**
+	 * From the first message (the default).
+	 */
+	EARLIEST,
+
+	/**
+	 * After the last message, so only messages sent from now on are received.
+	 */
+	LATEST,
+
+	/**
+	 * From a message sequence number (counting from 0 at the start of the
+	 * destination).
+	 */
+	OFFSET,
+
+	/**
+	 * From the messages written at or after a time. Messages are indexed in batches, so
+	 * a few written earlier may be received as well.
+	 */
+	TIMESTAMP;
+
+}
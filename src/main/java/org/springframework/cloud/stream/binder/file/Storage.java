@@ -0,0 +1,38 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.binder.file;
+
+/**
+ * The way messages for a destination are laid out on disk.
+ *
+ * @author Dave Syer
+ *
+ */
+public enum Storage {
+
+	/**
+	 * A single plain file (or named pipe) at <code>prefix/name</code> (the default).
+	 */
+	PLAIN,
+
+	/**
+	 * A directory at <code>prefix/name</code> containing fixed-size, memory-mapped
+	 * segment files.
+	 */
+	SEGMENTED;
+
+}
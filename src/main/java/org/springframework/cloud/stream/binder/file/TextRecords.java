@@ -0,0 +1,209 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.binder.file;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.support.MessageBuilder;
+
+/**
+ * Encoding and decoding of messages in the line-oriented text format. A payload on a
+ * single line with no headers is just that line. Otherwise the message is written as
+ *
+ * <pre>
+ * #headers
+ * key=value
+ * #payload
+ * ...
+ * #end
+ * </pre>
+ *
+ * where only {@link String} headers are included, and the payload can span several
+ * lines.
+ *
+ * @author Dave Syer
+ *
+ */
+final class TextRecords {
+
+	private static Log logger = LogFactory.getLog(TextRecords.class);
+
+	private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+	private TextRecords() {
+	}
+
+	/**
+	 * Append the text encoding of a message to the builder provided.
+	 */
+	public static void encode(Message<?> message, StringBuilder sb) {
+		int start = sb.length();
+		if (!message.getHeaders().isEmpty()) {
+			for (Entry<String, Object> entry : message.getHeaders().entrySet()) {
+				if (!MessageHeaders.ID.equals(entry.getKey())
+						&& !MessageHeaders.TIMESTAMP.equals(entry.getKey())
+						&& entry.getValue() instanceof String) {
+					if (sb.length() == start) {
+						sb.append("#headers\n");
+					}
+					sb.append(entry.getKey()).append("=").append(entry.getValue())
+							.append("\n");
+				}
+			}
+		}
+		String value = message.getPayload().toString();
+		boolean needsEnd = false;
+		if (value.contains("\n") || sb.length() > start) {
+			sb.append("#payload\n");
+			needsEnd = true;
+		}
+		sb.append(value).append("\n");
+		if (needsEnd) {
+			sb.append("#end\n");
+		}
+	}
+
+	/**
+	 * Parse the next message from the reader. The end of the record is found by
+	 * scanning bytes, and nothing is decoded or consumed unless the whole record is
+	 * available. The payload is decoded in one go from the bytes between the
+	 * <code>#payload</code> and <code>#end</code> lines.
+	 *
+	 * @return a message, or null if the record was not a message (in which case it is
+	 * consumed) or if it is not complete yet (in which case the position of the reader
+	 * does not change)
+	 */
+	public static Message<?> parse(RecordReader reader) throws IOException {
+		int end = reader.scanLine(0);
+		if (end < 0) {
+			return null;
+		}
+		int headers = -1;
+		int line = 0;
+		if (reader.lineEquals(0, end, "#headers")) {
+			headers = end;
+			line = end;
+			// Headers run until the next line starting with #
+			while (true) {
+				end = reader.scanLine(line);
+				if (end < 0) {
+					return null;
+				}
+				if (reader.get(line) == '#') {
+					break;
+				}
+				line = end;
+			}
+		}
+		int payload = line;
+		int length = reader.lineLength(line, end);
+		boolean nested = false;
+		if (reader.lineEquals(line, end, "#payload")) {
+			nested = true;
+			payload = end;
+			line = end;
+			while (true) {
+				end = reader.scanLine(line);
+				if (end < 0) {
+					return null;
+				}
+				if (reader.lineEquals(line, end, "#end")) {
+					break;
+				}
+				line = end;
+			}
+			// Up to and excluding the last line terminator before #end
+			length = line > payload ? reader.lineLength(payload, line) : 0;
+		}
+		else if (reader.lineEquals(line, end, "#end")) {
+			length = 0;
+		}
+		if (logger.isTraceEnabled()) {
+			logger.trace("Record: " + reader.decode(0, end));
+		}
+		Map<String, Object> map = headers >= 0 ? headers(reader, headers) : null;
+		Message<?> message = null;
+		if (length > 0 || map != null && !map.isEmpty()) {
+			String value = nested ? multiline(reader, payload, length)
+					: reader.decode(payload, length);
+			MessageBuilder<String> builder = MessageBuilder.withPayload(value);
+			if (map != null) {
+				builder.copyHeadersIfAbsent(map);
+			}
+			message = builder.build();
+		}
+		reader.consume(end);
+		return message;
+	}
+
+	private static Map<String, Object> headers(RecordReader reader, int line)
+			throws IOException {
+		Map<String, Object> map = new LinkedHashMap<>();
+		int end;
+		while (reader.get(line) != '#') {
+			end = reader.scanLine(line);
+			int length = reader.lineLength(line, end);
+			int index = 0;
+			while (index < length && reader.get(line + index) != '=') {
+				index++;
+			}
+			String key = reader.decode(line, index);
+			String value = index < length
+					? reader.decode(line + index + 1, length - index - 1)
+					: null;
+			map.put(key, value);
+			line = end;
+		}
+		return map;
+	}
+
+	/**
+	 * Decode the lines of a payload, joining them with the platform line separator.
+	 */
+	private static String multiline(RecordReader reader, int from, int length) {
+		boolean plain = "\n".equals(LINE_SEPARATOR);
+		for (int i = 0; plain && i < length; i++) {
+			plain = reader.get(from + i) != '\r';
+		}
+		if (plain) {
+			return reader.decode(from, length);
+		}
+		StringBuilder sb = new StringBuilder(length);
+		int line = from;
+		int limit = from + length;
+		for (int i = from; i <= limit; i++) {
+			if (i == limit || reader.get(i) == '\n') {
+				if (line > from) {
+					sb.append(LINE_SEPARATOR);
+				}
+				int end = i > line && reader.get(i - 1) == '\r' ? i - 1 : i;
+				sb.append(reader.decode(line, end - line));
+				line = i + 1;
+			}
+		}
+		return sb.toString();
+	}
+
+}
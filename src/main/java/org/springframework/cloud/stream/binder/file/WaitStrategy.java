@@ -0,0 +1,54 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.binder.file;
+
+/**
+ * The way a consumer waits for more data when it reaches the end of a destination.
+ *
+ * @author Dave Syer
+ *
+ */
+public enum WaitStrategy {
+
+	/**
+	 * Wait for a file system notification, or fall back to {@link #SLEEP} if
+	 * notifications are not available (the default).
+	 */
+	WATCH,
+
+	/**
+	 * Sleep for a fixed interval.
+	 */
+	SLEEP,
+
+	/**
+	 * Try again immediately. Lowest latency, but uses a whole CPU core.
+	 */
+	BUSY_SPIN,
+
+	/**
+	 * Spin for a while and then yield the thread between attempts.
+	 */
+	YIELD,
+
+	/**
+	 * Park the thread for exponentially increasing periods, up to a maximum interval.
+	 * Uses almost no CPU on idle destinations.
+	 */
+	BACK_OFF;
+
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.binder.file;
+
+/**
+ * Strategy for pushing batches of messages written by a {@link MessageController} out
+ * to the file system.
+ *
+ * @author Dave Syer
+ *
+ */
+public enum WriteDurability {
+
+	/**
+	 * Write each batch in a single call and leave the rest to the operating system.
+	 */
+	NONE,
+
+	/**
+	 * Write and flush each batch (the default).
+	 */
+	FLUSH_PER_BATCH,
+
+	/**
+	 * Flush each batch and force the file to disk once a configured number of messages
+	 * has been written since the last sync.
+	 */
+	FSYNC_MESSAGES,
+
+	/**
+	 * Flush each batch and force the file to disk once a configured interval has
+	 * elapsed since the last sync.
+	 */
+	FSYNC_INTERVAL;
+
+}
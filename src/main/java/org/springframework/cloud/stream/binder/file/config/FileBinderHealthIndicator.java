@@ -0,0 +1,51 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.binder.file.config;
+
+import java.util.Map;
+
+import org.springframework.boot.actuate.health.AbstractHealthIndicator;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.cloud.stream.binder.file.MessageController;
+
+/**
+ * Reports the binder as down until all the destinations of a {@link MessageController}
+ * are available (i.e. their files exist), listing the ones that are not.
+ *
+ * @author Dave Syer
+ *
+ */
+public class FileBinderHealthIndicator extends AbstractHealthIndicator {
+
+	private final MessageController controller;
+
+	public FileBinderHealthIndicator(MessageController controller) {
+		this.controller = controller;
+	}
+
+	@Override
+	protected void doHealthCheck(Health.Builder builder) throws Exception {
+		Map<String, String> unavailable = this.controller.getUnavailable();
+		if (unavailable.isEmpty()) {
+			builder.up();
+		}
+		else {
+			builder.down().withDetail("unavailable", unavailable);
+		}
+	}
+
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.binder.file.config;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.cloud.stream.binder.file.DestinationMetrics;
+import org.springframework.cloud.stream.binder.file.LatencyHistogram;
+import org.springframework.cloud.stream.binder.file.MessageController;
+
+/**
+ * Publishes the {@link DestinationMetrics} of a {@link MessageController} to the
+ * actuator, with names like <code>binder.file.output.{name}.messages</code>. Latencies
+ * are in milliseconds.
+ *
+ * @author Dave Syer
+ *
+ */
+public class FileBinderPublicMetrics implements PublicMetrics {
+
+	private static final double NANOS_PER_MILLI = 1000000.0;
+
+	private final MessageController controller;
+
+	public FileBinderPublicMetrics(MessageController controller) {
+		this.controller = controller;
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> result = new ArrayList<>();
+		for (DestinationMetrics metrics : this.controller.getMetrics()) {
+			String prefix = "binder.file." + (metrics.isWritable() ? "output" : "input")
+					+ "." + metrics.getName() + ".";
+			result.add(new Metric<>(prefix + "messages", metrics.getMessages()));
+			result.add(new Metric<>(prefix + "bytes", metrics.getBytes()));
+			result.add(new Metric<>(prefix + "pending", metrics.getPending()));
+			if (metrics.isWritable()) {
+				result.add(new Metric<>(prefix + "syncs", metrics.getSyncs()));
+			}
+			long lag = metrics.getLag();
+			if (lag >= 0) {
+				result.add(new Metric<>(prefix + "lag", lag));
+			}
+			LatencyHistogram latency = metrics.getLatency();
+			result.add(new Metric<>(prefix + "latency.count", latency.getCount()));
+			result.add(new Metric<>(prefix + "latency.mean",
+					latency.getMean() / NANOS_PER_MILLI));
+			result.add(new Metric<>(prefix + "latency.max",
+					latency.getMax() / NANOS_PER_MILLI));
+			result.add(new Metric<>(prefix + "latency.p99",
+					latency.getPercentile(99) / NANOS_PER_MILLI));
+		}
+		return result;
+	}
+
+}
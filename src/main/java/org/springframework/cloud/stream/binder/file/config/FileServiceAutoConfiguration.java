@@ -21,9 +21,11 @@ import org.springframework.boot.autoconfigure.AutoConfigureBefore;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
 import org.springframework.boot.autoconfigure.context.PropertyPlaceholderAutoConfiguration;
 import org.springframework.boot.autoconfigure.web.WebMvcAutoConfiguration;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.cloud.stream.binder.Binder;
 import org.springframework.cloud.stream.binder.file.FileMessageChannelBinder;
 import org.springframework.cloud.stream.binder.file.MessageController;
+import org.springframework.cloud.stream.binder.file.properties.FileExtendedBindingProperties;
 import org.springframework.cloud.stream.config.codec.kryo.KryoCodecAutoConfiguration;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -37,17 +39,22 @@ import org.springframework.integration.codec.Codec;
 @ConditionalOnMissingBean(Binder.class)
 @AutoConfigureBefore({ WebMvcAutoConfiguration.class })
 @Import({ PropertyPlaceholderAutoConfiguration.class, KryoCodecAutoConfiguration.class })
+@EnableConfigurationProperties(FileExtendedBindingProperties.class)
 public class FileServiceAutoConfiguration {
 
 	@Autowired
 	private Codec codec;
 
+	@Autowired
+	private FileExtendedBindingProperties extendedBindingProperties;
+
 	@Bean
 	public FileMessageChannelBinder fileMessageChannelBinder(
 			MessageController controller) {
 		FileMessageChannelBinder messageChannelBinder = new FileMessageChannelBinder(
 				controller);
 		messageChannelBinder.setCodec(this.codec);
+		messageChannelBinder.setExtendedBindingProperties(this.extendedBindingProperties);
 		return messageChannelBinder;
 	}
 
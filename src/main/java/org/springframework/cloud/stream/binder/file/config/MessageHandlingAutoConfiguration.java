@@ -16,16 +16,29 @@
 
 package org.springframework.cloud.stream.binder.file.config;
 
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.cloud.stream.binder.file.MessageController;
+import org.springframework.cloud.stream.binder.file.RetentionAction;
+import org.springframework.cloud.stream.binder.file.Storage;
+import org.springframework.cloud.stream.binder.file.WriteDurability;
+import org.springframework.cloud.stream.config.codec.kryo.KryoCodecAutoConfiguration;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.integration.channel.MessagePublishingErrorHandler;
+import org.springframework.integration.codec.Codec;
+import org.springframework.integration.support.channel.BeanFactoryChannelResolver;
 
 /**
  * @author Dave Syer
  */
 @Configuration
 @ConfigurationProperties("spring.cloud.stream.binder.file")
+@Import(KryoCodecAutoConfiguration.class)
 public class MessageHandlingAutoConfiguration {
 
 	/**
@@ -34,10 +47,129 @@ public class MessageHandlingAutoConfiguration {
 	private String prefix = "target/stream";
 
 	/**
-	 * Maximum time to wait on start up for files to exist.
+	 * Maximum time to wait for files to exist. Bindings don't wait: destinations are
+	 * read or written as soon as their files appear.
 	 */
 	private long timeoutMillis = 10000;
 
+	/**
+	 * How hard to push written messages out to the file system.
+	 */
+	private WriteDurability durability = WriteDurability.FLUSH_PER_BATCH;
+
+	/**
+	 * Maximum number of messages to encode and write in one go.
+	 */
+	private int batchSize = 1000;
+
+	/**
+	 * Number of messages between syncs when the durability is "fsync-messages".
+	 */
+	private int fsyncMessages = 1000;
+
+	/**
+	 * Interval between syncs when the durability is "fsync-interval".
+	 */
+	private long fsyncIntervalMillis = 1000;
+
+	/**
+	 * How destinations are stored: a plain file or a directory of memory-mapped
+	 * segments.
+	 */
+	private Storage storage = Storage.PLAIN;
+
+	/**
+	 * Size of each segment file in bytes when the storage is "segmented".
+	 */
+	private int segmentSize = 64 * 1024 * 1024;
+
+	/**
+	 * Interval between writes of the committed offsets of consumer groups.
+	 */
+	private long commitIntervalMillis = 1000;
+
+	/**
+	 * Maximum time a producer writes to one segment before starting a new one when the
+	 * storage is "segmented" (0 means segments are only rolled over when they are
+	 * full).
+	 */
+	private long segmentRollMillis;
+
+	/**
+	 * Maximum total size in bytes of the segments of a destination when the storage is
+	 * "segmented". The oldest segments are removed by the producer to keep below it (0
+	 * means no limit).
+	 */
+	private long retentionBytes;
+
+	/**
+	 * Maximum age of the segments of a destination when the storage is "segmented" (0
+	 * means no limit).
+	 */
+	private long retentionMillis;
+
+	/**
+	 * What to do with segments that are removed by retention: delete them, or move them
+	 * to an "archive" directory.
+	 */
+	private RetentionAction retentionAction = RetentionAction.DELETE;
+
+	/**
+	 * Interval between checks for segments to remove.
+	 */
+	private long retentionCheckMillis = 60000;
+
+	/**
+	 * Flag to say that consumers should wait for file system notifications at the end
+	 * of a file, instead of polling.
+	 */
+	private boolean watch = true;
+
+	/**
+	 * Maximum time to wait for a file system notification before looking for more data
+	 * anyway.
+	 */
+	private long watchTimeoutMillis = 1000;
+
+	/**
+	 * Number of threads shared by all the destinations for reading and writing files (0
+	 * means each destination has a thread of its own). Named pipes, and reactive
+	 * consumers, always have a thread of their own.
+	 */
+	private int ioThreads;
+
+	/**
+	 * Time after which a producer that has not been sent anything is closed, releasing
+	 * its file handle (and thread). It is opened again if another message is sent to
+	 * it. 0 means never.
+	 */
+	private long idleTimeoutMillis;
+
+	/**
+	 * Maximum number of producers open at once. The least recently used ones are
+	 * closed to make room for new ones. 0 means no limit.
+	 */
+	private int maxOutputs;
+
+	/**
+	 * Number of bytes written to a destination between entries in its index, which
+	 * consumers use to find where to start reading. 0 means no index.
+	 */
+	private int indexIntervalBytes = 64 * 1024;
+
+	/**
+	 * Flag to deliver messages sent to a destination straight to a consumer of the same
+	 * destination in this application (as well as writing them to the file).
+	 */
+	private boolean loopback;
+
+	/**
+	 * Payload classes that consumers decode with the codec: class names, packages
+	 * followed by ".*", or "*" for all of them. Payloads of other types are received as
+	 * the encoded bytes.
+	 */
+	private String[] trustedPayloadTypes = new String[0];
+
 	public long getTimeoutMillis() {
 		return this.timeoutMillis;
 	}
@@ -46,6 +178,166 @@ public class MessageHandlingAutoConfiguration {
 		this.timeoutMillis = timeoutMillis;
 	}
 
+	public WriteDurability getDurability() {
+		return this.durability;
+	}
+
+	public void setDurability(WriteDurability durability) {
+		this.durability = durability;
+	}
+
+	public int getBatchSize() {
+		return this.batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public int getFsyncMessages() {
+		return this.fsyncMessages;
+	}
+
+	public void setFsyncMessages(int fsyncMessages) {
+		this.fsyncMessages = fsyncMessages;
+	}
+
+	public long getFsyncIntervalMillis() {
+		return this.fsyncIntervalMillis;
+	}
+
+	public void setFsyncIntervalMillis(long fsyncIntervalMillis) {
+		this.fsyncIntervalMillis = fsyncIntervalMillis;
+	}
+
+	public Storage getStorage() {
+		return this.storage;
+	}
+
+	public void setStorage(Storage storage) {
+		this.storage = storage;
+	}
+
+	public int getSegmentSize() {
+		return this.segmentSize;
+	}
+
+	public void setSegmentSize(int segmentSize) {
+		this.segmentSize = segmentSize;
+	}
+
+	public long getCommitIntervalMillis() {
+		return this.commitIntervalMillis;
+	}
+
+	public void setCommitIntervalMillis(long commitIntervalMillis) {
+		this.commitIntervalMillis = commitIntervalMillis;
+	}
+
+	public long getSegmentRollMillis() {
+		return this.segmentRollMillis;
+	}
+
+	public void setSegmentRollMillis(long segmentRollMillis) {
+		this.segmentRollMillis = segmentRollMillis;
+	}
+
+	public long getRetentionBytes() {
+		return this.retentionBytes;
+	}
+
+	public void setRetentionBytes(long retentionBytes) {
+		this.retentionBytes = retentionBytes;
+	}
+
+	public long getRetentionMillis() {
+		return this.retentionMillis;
+	}
+
+	public void setRetentionMillis(long retentionMillis) {
+		this.retentionMillis = retentionMillis;
+	}
+
+	public RetentionAction getRetentionAction() {
+		return this.retentionAction;
+	}
+
+	public void setRetentionAction(RetentionAction retentionAction) {
+		this.retentionAction = retentionAction;
+	}
+
+	public long getRetentionCheckMillis() {
+		return this.retentionCheckMillis;
+	}
+
+	public void setRetentionCheckMillis(long retentionCheckMillis) {
+		this.retentionCheckMillis = retentionCheckMillis;
+	}
+
+	public boolean isWatch() {
+		return this.watch;
+	}
+
+	public void setWatch(boolean watch) {
+		this.watch = watch;
+	}
+
+	public long getWatchTimeoutMillis() {
+		return this.watchTimeoutMillis;
+	}
+
+	public void setWatchTimeoutMillis(long watchTimeoutMillis) {
+		this.watchTimeoutMillis = watchTimeoutMillis;
+	}
+
+	public int getIoThreads() {
+		return this.ioThreads;
+	}
+
+	public void setIoThreads(int ioThreads) {
+		this.ioThreads = ioThreads;
+	}
+
+	public long getIdleTimeoutMillis() {
+		return this.idleTimeoutMillis;
+	}
+
+	public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+		this.idleTimeoutMillis = idleTimeoutMillis;
+	}
+
+	public int getMaxOutputs() {
+		return this.maxOutputs;
+	}
+
+	public void setMaxOutputs(int maxOutputs) {
+		this.maxOutputs = maxOutputs;
+	}
+
+	public int getIndexIntervalBytes() {
+		return this.indexIntervalBytes;
+	}
+
+	public void setIndexIntervalBytes(int indexIntervalBytes) {
+		this.indexIntervalBytes = indexIntervalBytes;
+	}
+
+	public boolean isLoopback() {
+		return this.loopback;
+	}
+
+	public void setLoopback(boolean loopback) {
+		this.loopback = loopback;
+	}
+
+	public String[] getTrustedPayloadTypes() {
+		return this.trustedPayloadTypes;
+	}
+
+	public void setTrustedPayloadTypes(String[] trustedPayloadTypes) {
+		this.trustedPayloadTypes = trustedPayloadTypes;
+	}
+
 	public String getPrefix() {
 		return prefix;
 	}
@@ -55,9 +347,57 @@ public class MessageHandlingAutoConfiguration {
 	}
 
 	@Bean
-	public MessageController messageController() {
+	public MessageController messageController(Codec codec, BeanFactory beanFactory) {
 		MessageController controller = new MessageController(prefix);
 		controller.setTimeout(timeoutMillis);
+		controller.setDurability(durability);
+		controller.setBatchSize(batchSize);
+		controller.setFsyncMessages(fsyncMessages);
+		controller.setFsyncIntervalMillis(fsyncIntervalMillis);
+		controller.setStorage(storage);
+		controller.setSegmentSize(segmentSize);
+		controller.setCommitIntervalMillis(commitIntervalMillis);
+		controller.setSegmentRollMillis(segmentRollMillis);
+		controller.setRetentionBytes(retentionBytes);
+		controller.setRetentionMillis(retentionMillis);
+		controller.setRetentionAction(retentionAction);
+		controller.setRetentionCheckMillis(retentionCheckMillis);
+		controller.setWatch(watch);
+		controller.setWatchTimeoutMillis(watchTimeoutMillis);
+		controller.setIoThreads(ioThreads);
+		controller.setIdleTimeoutMillis(idleTimeoutMillis);
+		controller.setMaxOutputs(maxOutputs);
+		controller.setIndexIntervalBytes(indexIntervalBytes);
+		controller.setLoopback(loopback);
+		controller.setTrustedPayloadTypes(trustedPayloadTypes);
+		controller.setCodec(codec);
+		// Failures in concurrent consumers go to the error channel
+		controller.setErrorHandler(new MessagePublishingErrorHandler(
+				new BeanFactoryChannelResolver(beanFactory)));
 		return controller;
 	}
+
+	@Configuration
+	@ConditionalOnClass(PublicMetrics.class)
+	protected static class FileBinderMetricsConfiguration {
+
+		@Bean
+		public FileBinderPublicMetrics fileBinderPublicMetrics(
+				MessageController controller) {
+			return new FileBinderPublicMetrics(controller);
+		}
+
+	}
+
+	@Configuration
+	@ConditionalOnClass(HealthIndicator.class)
+	protected static class FileBinderHealthConfiguration {
+
+		@Bean
+		public FileBinderHealthIndicator fileBinderHealthIndicator(
+				MessageController controller) {
+			return new FileBinderHealthIndicator(controller);
+		}
+
+	}
 }
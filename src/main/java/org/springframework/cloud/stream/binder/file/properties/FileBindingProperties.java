@@ -0,0 +1,47 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.binder.file.properties;
+
+/**
+ * File binder specific properties of a binding.
+ *
+ * @author Dave Syer
+ *
+ */
+public class FileBindingProperties {
+
+	private FileConsumerProperties consumer = new FileConsumerProperties();
+
+	private FileProducerProperties producer = new FileProducerProperties();
+
+	public FileConsumerProperties getConsumer() {
+		return this.consumer;
+	}
+
+	public void setConsumer(FileConsumerProperties consumer) {
+		this.consumer = consumer;
+	}
+
+	public FileProducerProperties getProducer() {
+		return this.producer;
+	}
+
+	public void setProducer(FileProducerProperties producer) {
+		this.producer = producer;
+	}
+
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.binder.file.properties;
+
+import org.springframework.cloud.stream.binder.file.StartPosition;
+import org.springframework.cloud.stream.binder.file.WaitStrategy;
+
+/**
+ * File binder specific properties of a consumer binding.
+ *
+ * @author Dave Syer
+ *
+ */
+public class FileConsumerProperties {
+
+	/**
+	 * How to wait for more data at the end of the destination.
+	 */
+	private WaitStrategy waitStrategy = WaitStrategy.WATCH;
+
+	/**
+	 * The sleep interval for the "sleep" wait strategy, and the maximum park time for
+	 * "back-off".
+	 */
+	private long waitMillis = 20;
+
+	/**
+	 * Maximum number of messages read ahead from the destination for polled consumers
+	 * (rounded up to a power of 2).
+	 */
+	private int bufferSize = 1024;
+
+	/**
+	 * The number of partitions of the destination when the consumer is partitioned.
+	 * Each instance reads the partitions whose index modulo the instance count is its
+	 * own instance index. Defaults to the instance count (one partition per instance).
+	 */
+	private int partitionCount = 0;
+
+	/**
+	 * The name of a header used to keep messages in order when the consumer
+	 * concurrency is more than 1. Messages with the same value are always handled by
+	 * the same thread. If not set, messages are handled in no particular order.
+	 */
+	private String orderingHeader;
+
+	/**
+	 * Where to start reading when there is no committed offset for the group (or no
+	 * group).
+	 */
+	private StartPosition startPosition = StartPosition.EARLIEST;
+
+	/**
+	 * The sequence number of the first message to read (counting from 0 at the start of
+	 * the destination) when the start position is "offset".
+	 */
+	private long startOffset;
+
+	/**
+	 * The time (in milliseconds since the epoch) from which to read messages when the
+	 * start position is "timestamp".
+	 */
+	private long startTimestamp;
+
+	public WaitStrategy getWaitStrategy() {
+		return this.waitStrategy;
+	}
+
+	public void setWaitStrategy(WaitStrategy waitStrategy) {
+		this.waitStrategy = waitStrategy;
+	}
+
+	public int getBufferSize() {
+		return this.bufferSize;
+	}
+
+	public void setBufferSize(int bufferSize) {
+		this.bufferSize = bufferSize;
+	}
+
+	public int getPartitionCount() {
+		return this.partitionCount;
+	}
+
+	public void setPartitionCount(int partitionCount) {
+		this.partitionCount = partitionCount;
+	}
+
+	public String getOrderingHeader() {
+		return this.orderingHeader;
+	}
+
+	public void setOrderingHeader(String orderingHeader) {
+		this.orderingHeader = orderingHeader;
+	}
+
+	public StartPosition getStartPosition() {
+		return this.startPosition;
+	}
+
+	public void setStartPosition(StartPosition startPosition) {
+		this.startPosition = startPosition;
+	}
+
+	public long getStartOffset() {
+		return this.startOffset;
+	}
+
+	public void setStartOffset(long startOffset) {
+		this.startOffset = startOffset;
+	}
+
+	public long getStartTimestamp() {
+		return this.startTimestamp;
+	}
+
+	public void setStartTimestamp(long startTimestamp) {
+		this.startTimestamp = startTimestamp;
+	}
+
+	public long getWaitMillis() {
+		return this.waitMillis;
+	}
+
+	public void setWaitMillis(long waitMillis) {
+		this.waitMillis = waitMillis;
+	}
+
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.binder.file.properties;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.cloud.stream.binder.ExtendedBindingProperties;
+
+/**
+ * File binder specific properties of all the bindings, keyed by channel name, e.g.
+ * <code>spring.cloud.stream.file.bindings.input.consumer.wait-strategy=back-off</code>.
+ *
+ * @author Dave Syer
+ *
+ */
+@ConfigurationProperties("spring.cloud.stream.file")
+public class FileExtendedBindingProperties
+		implements ExtendedBindingProperties<FileConsumerProperties, FileProducerProperties> {
+
+	private Map<String, FileBindingProperties> bindings = new HashMap<>();
+
+	public Map<String, FileBindingProperties> getBindings() {
+		return this.bindings;
+	}
+
+	public void setBindings(Map<String, FileBindingProperties> bindings) {
+		this.bindings = bindings;
+	}
+
+	@Override
+	public FileConsumerProperties getExtendedConsumerProperties(String channelName) {
+		if (this.bindings.containsKey(channelName)) {
+			return this.bindings.get(channelName).getConsumer();
+		}
+		return new FileConsumerProperties();
+	}
+
+	@Override
+	public FileProducerProperties getExtendedProducerProperties(String channelName) {
+		if (this.bindings.containsKey(channelName)) {
+			return this.bindings.get(channelName).getProducer();
+		}
+		return new FileProducerProperties();
+	}
+
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.binder.file.properties;
+
+import org.springframework.cloud.stream.binder.file.OverflowPolicy;
+import org.springframework.cloud.stream.binder.file.RecordFormat;
+
+/**
+ * File binder specific properties of a producer binding.
+ *
+ * @author Dave Syer
+ *
+ */
+public class FileProducerProperties {
+
+	/**
+	 * Maximum number of messages waiting to be written (rounded up to a power of 2).
+	 */
+	private int bufferSize = 1024;
+
+	/**
+	 * What to do with a message when the buffer is full.
+	 */
+	private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+
+	/**
+	 * The encoding of the messages written to the destination.
+	 */
+	private RecordFormat format = RecordFormat.TEXT;
+
+	/**
+	 * The compression level (0-9) when the format is "compressed".
+	 */
+	private int compressionLevel = 6;
+
+	/**
+	 * The number of bytes of messages to gather into each block before compressing it
+	 * when the format is "compressed". Blocks can be smaller if fewer messages than
+	 * that are waiting to be written.
+	 */
+	private int blockSize = 64 * 1024;
+
+	/**
+	 * Flag to say that repeated string and mime type header values (as well as header
+	 * keys) should be written once per file and referred to by id after that, when the
+	 * format is "binary" or "compressed".
+	 */
+	private boolean headerValueDictionary = false;
+
+	/**
+	 * Flag to say that other producers (e.g. in other processes) write to the same
+	 * destination, so each batch has to be appended atomically. Not supported with
+	 * segmented storage.
+	 */
+	private boolean multipleProducers = false;
+
+	/**
+	 * Flag to say that payloads that are not strings or byte arrays should be encoded
+	 * with the binder's codec (instead of converted to strings), when the format is
+	 * "binary" or "compressed".
+	 */
+	private boolean useCodec = false;
+
+	public int getBufferSize() {
+		return this.bufferSize;
+	}
+
+	public void setBufferSize(int bufferSize) {
+		this.bufferSize = bufferSize;
+	}
+
+	public RecordFormat getFormat() {
+		return this.format;
+	}
+
+	public void setFormat(RecordFormat format) {
+		this.format = format;
+	}
+
+	public int getCompressionLevel() {
+		return this.compressionLevel;
+	}
+
+	public void setCompressionLevel(int compressionLevel) {
+		this.compressionLevel = compressionLevel;
+	}
+
+	public int getBlockSize() {
+		return this.blockSize;
+	}
+
+	public void setBlockSize(int blockSize) {
+		this.blockSize = blockSize;
+	}
+
+	public boolean isHeaderValueDictionary() {
+		return this.headerValueDictionary;
+	}
+
+	public void setHeaderValueDictionary(boolean headerValueDictionary) {
+		this.headerValueDictionary = headerValueDictionary;
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return this.overflowPolicy;
+	}
+
+	public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	public boolean isMultipleProducers() {
+		return this.multipleProducers;
+	}
+
+	public void setMultipleProducers(boolean multipleProducers) {
+		this.multipleProducers = multipleProducers;
+	}
+
+	public boolean isUseCodec() {
+		return this.useCodec;
+	}
+
+	public void setUseCodec(boolean useCodec) {
+		this.useCodec = useCodec;
+	}
+
+}
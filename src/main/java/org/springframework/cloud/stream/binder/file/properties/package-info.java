@@ -0,0 +1,5 @@
+/**
+ * Binding properties specific to the file binder.
+ */
+
+package org.springframework.cloud.stream.binder.file.properties;
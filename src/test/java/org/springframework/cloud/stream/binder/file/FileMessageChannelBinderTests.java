@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.binder.file;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.springframework.beans.MutablePropertyValues;
+import org.springframework.boot.bind.RelaxedDataBinder;
+import org.springframework.cloud.stream.binder.ExtendedConsumerProperties;
+import org.springframework.cloud.stream.binder.file.properties.FileExtendedBindingProperties;
+import org.springframework.integration.channel.DirectChannel;
+import org.springframework.messaging.Message;
+import org.springframework.util.FileSystemUtils;
+import org.springframework.util.StreamUtils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Dave Syer
+ *
+ */
+public class FileMessageChannelBinderTests {
+
+	private File root = new File("target/binder");
+
+	private MessageController controller = new MessageController("target/binder");
+
+	private FileMessageChannelBinder binder = new FileMessageChannelBinder(
+			this.controller);
+
+	@Before
+	public void init() {
+		FileSystemUtils.deleteRecursively(this.root);
+		this.root.mkdirs();
+	}
+
+	@After
+	public void close() throws Exception {
+		this.controller.close();
+	}
+
+	@Test
+	public void waitStrategies() throws Exception {
+		for (WaitStrategy strategy : WaitStrategy.values()) {
+			String value = strategy.name().toLowerCase().replace('_', '-');
+			FileExtendedBindingProperties properties = new FileExtendedBindingProperties();
+			new RelaxedDataBinder(properties).bind(new MutablePropertyValues(
+					Collections.singletonMap("bindings.input.consumer.wait-strategy",
+							value)));
+			this.binder.setExtendedBindingProperties(properties);
+			String destination = "in-" + value;
+			File file = new File(this.root, destination);
+			file.createNewFile();
+			BlockingQueue<Message<?>> received = new LinkedBlockingQueue<>();
+			DirectChannel inbound = new DirectChannel();
+			inbound.subscribe(received::add);
+			this.binder.bindConsumer(destination, null, inbound,
+					new ExtendedConsumerProperties<>(
+							this.binder.getExtendedConsumerProperties("input")));
+			Thread.sleep(100L);
+			StreamUtils.copy(value + "\n", StandardCharsets.UTF_8,
+					new FileOutputStream(file));
+			assertThat(received.poll(1000L, TimeUnit.MILLISECONDS).getPayload())
+					.isEqualTo(value);
+		}
+	}
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.binder.file;
+
+import org.junit.Test;
+
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.util.MimeTypeUtils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * @author Dave Syer
+ *
+ */
+public class HeaderCodecTests {
+
+	private Message<?> message = MessageBuilder.withPayload("hello")
+			.setHeader("contentType", MimeTypeUtils.TEXT_PLAIN).setHeader("count", 1)
+			.setHeader("pojo", new Object()).build();
+
+	@Test
+	public void typesPreserved() throws Exception {
+		Message<?> result = BinaryRecords.decode(BinaryRecords.encode(message));
+		assertThat(result.getHeaders()).containsEntry("contentType",
+				MimeTypeUtils.TEXT_PLAIN).containsEntry("count", 1);
+		assertThat(result.getHeaders()).doesNotContainKey("pojo");
+	}
+
+	@Test
+	public void repeatedKeysAndValuesShorter() throws Exception {
+		HeaderCodec encoder = new HeaderCodec(true, true);
+		byte[] first = BinaryRecords.encode(message, encoder);
+		byte[] second = BinaryRecords.encode(message, encoder);
+		assertThat(second.length).isLessThan(first.length - 20);
+		HeaderCodec decoder = new HeaderCodec();
+		BinaryRecords.decode(first, decoder);
+		assertThat(BinaryRecords.decode(second, decoder).getHeaders())
+				.containsEntry("contentType", MimeTypeUtils.TEXT_PLAIN)
+				.containsEntry("count", 1);
+	}
+
+	@Test
+	public void unknownId() throws Exception {
+		HeaderCodec encoder = new HeaderCodec(true, false);
+		BinaryRecords.encode(message, encoder);
+		byte[] second = BinaryRecords.encode(message, encoder);
+		assertThatThrownBy(() -> BinaryRecords.decode(second))
+				.isInstanceOf(IllegalStateException.class)
+				.hasMessageContaining("Unknown header key id");
+	}
+
+	@Test
+	public void resetForgetsDecodedIds() throws Exception {
+		HeaderCodec encoder = new HeaderCodec(true, false);
+		HeaderCodec decoder = new HeaderCodec();
+		BinaryRecords.decode(BinaryRecords.encode(message, encoder), decoder);
+		byte[] second = BinaryRecords.encode(message, encoder);
+		decoder.reset();
+		assertThatThrownBy(() -> BinaryRecords.decode(second, decoder))
+				.isInstanceOf(IllegalStateException.class)
+				.hasMessageContaining("Unknown header key id");
+	}
+
+	@Test
+	public void redefinitionWins() throws Exception {
+		HeaderCodec encoder = new HeaderCodec(true, false);
+		HeaderCodec decoder = new HeaderCodec();
+		BinaryRecords.decode(BinaryRecords.encode(message, encoder), decoder);
+		encoder.reset();
+		Message<?> other = MessageBuilder.withPayload("world").setHeader("foo", "bar")
+				.build();
+		BinaryRecords.decode(BinaryRecords.encode(other, encoder), decoder);
+		assertThat(BinaryRecords.decode(BinaryRecords.encode(other, encoder), decoder)
+				.getHeaders()).containsEntry("foo", "bar");
+	}
+
+}
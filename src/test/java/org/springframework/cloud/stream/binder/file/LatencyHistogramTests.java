@@ -0,0 +1,59 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.binder.file;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Dave Syer
+ *
+ */
+public class LatencyHistogramTests {
+
+	@Test
+	public void empty() throws Exception {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertThat(histogram.getCount()).isEqualTo(0);
+		assertThat(histogram.getMean()).isEqualTo(0);
+		assertThat(histogram.getPercentile(99)).isEqualTo(0);
+	}
+
+	@Test
+	public void meanAndMax() throws Exception {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(100);
+		histogram.record(300);
+		assertThat(histogram.getCount()).isEqualTo(2);
+		assertThat(histogram.getMean()).isEqualTo(200);
+		assertThat(histogram.getMax()).isEqualTo(300);
+	}
+
+	@Test
+	public void percentileWithinFactorOfTwo() throws Exception {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 0; i < 99; i++) {
+			histogram.record(1000);
+		}
+		histogram.record(1000000);
+		assertThat(histogram.getPercentile(50)).isBetween(1000L, 2000L);
+		assertThat(histogram.getPercentile(99)).isBetween(1000L, 2000L);
+		assertThat(histogram.getPercentile(100)).isEqualTo(1000000);
+	}
+
+}
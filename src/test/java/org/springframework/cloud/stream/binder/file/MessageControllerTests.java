@@ -22,23 +22,46 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.After;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
+import reactor.core.publisher.Flux;
 
+import org.springframework.cloud.stream.binder.file.properties.FileConsumerProperties;
+import org.springframework.cloud.stream.binder.file.properties.FileProducerProperties;
 import org.springframework.integration.channel.DirectChannel;
+import org.springframework.integration.codec.kryo.PojoCodec;
 import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.MessagingException;
 import org.springframework.messaging.SubscribableChannel;
 import org.springframework.messaging.support.MessageBuilder;
 import org.springframework.util.FileSystemUtils;
+import org.springframework.util.MimeTypeUtils;
 import org.springframework.util.StreamUtils;
 import org.springframework.util.StringUtils;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 /**
  * @author Dave Syer
@@ -102,6 +125,45 @@ public class MessageControllerTests {
 		assertThat(result).isEqualTo("hello\nworld\n");
 	}
 
+	@Test
+	public void sendWithFsync() throws Exception {
+		controller.setDurability(WriteDurability.FSYNC_MESSAGES);
+		controller.setFsyncMessages(1);
+		sendAndSync();
+	}
+
+	@Test
+	public void sendWithFsyncInterval() throws Exception {
+		controller.setDurability(WriteDurability.FSYNC_INTERVAL);
+		controller.setFsyncIntervalMillis(10);
+		sendAndSync();
+	}
+
+	@Test
+	public void sendWithoutFsync() throws Exception {
+		controller.send("output", MessageBuilder.withPayload("hello").build());
+		assertThat(getOutput("output", "hello")).isEqualTo("hello\n");
+		assertThat(metrics("output").getSyncs()).isEqualTo(0);
+	}
+
+	private void sendAndSync() throws Exception {
+		controller.sendAsync("output", MessageBuilder.withPayload("hello").build())
+				.get(1, TimeUnit.SECONDS);
+		controller.sendAsync("output", MessageBuilder.withPayload("world").build())
+				.get(1, TimeUnit.SECONDS);
+		assertThat(getOutput("output", "world")).isEqualTo("hello\nworld\n");
+		assertThat(metrics("output").getSyncs()).isGreaterThanOrEqualTo(2);
+	}
+
+	private DestinationMetrics metrics(String name) {
+		for (DestinationMetrics item : controller.getMetrics()) {
+			if (item.getName().equals(name)) {
+				return item;
+			}
+		}
+		return null;
+	}
+
 	@Test
 	public void sendHeaders() throws Exception {
 		controller.send("output",
@@ -121,6 +183,225 @@ public class MessageControllerTests {
 				"#headers\nfoo=bar\n#payload\nhello\n#end\n#headers\nfoo=baz\n#payload\nworld\n#end\n");
 	}
 
+	@Test
+	public void receiveWhenWatching() throws Exception {
+		// Other platforms have a WatchService that polls so it would be too slow
+		Assume.assumeTrue(System.getProperty("os.name").startsWith("Linux"));
+		controller.setWatchTimeoutMillis(10000L);
+		assertThat(controller.receive("input", 100L, TimeUnit.MILLISECONDS)).isNull();
+		write("hello\n", "input");
+		Message<?> result = controller.receive("input", 1000L, TimeUnit.MILLISECONDS);
+		assertThat(result.getPayload()).isEqualTo("hello");
+	}
+
+	@Test
+	public void bindWithBusySpin() throws Exception {
+		bindWithWaitStrategy(WaitStrategy.BUSY_SPIN);
+	}
+
+	@Test
+	public void bindWithBackOff() throws Exception {
+		bindWithWaitStrategy(WaitStrategy.BACK_OFF);
+	}
+
+	@Test
+	public void bindWithYield() throws Exception {
+		bindWithWaitStrategy(WaitStrategy.YIELD);
+	}
+
+	@Test
+	public void bindWithSleep() throws Exception {
+		bindWithWaitStrategy(WaitStrategy.SLEEP);
+	}
+
+	private void bindWithWaitStrategy(WaitStrategy strategy) throws Exception {
+		BlockingQueue<Message<?>> received = new LinkedBlockingQueue<>();
+		SubscribableChannel inbound = new DirectChannel();
+		inbound.subscribe(received::add);
+		FileConsumerProperties properties = new FileConsumerProperties();
+		properties.setWaitStrategy(strategy);
+		controller.bind("input", null, inbound, properties);
+		Thread.sleep(100L);
+		write("hello\n", "input");
+		assertThat(received.poll(1000L, TimeUnit.MILLISECONDS).getPayload())
+				.isEqualTo("hello");
+	}
+
+	@Test
+	public void bindWithConcurrency() throws Exception {
+		Map<String, List<String>> received = new ConcurrentHashMap<>();
+		Set<String> threads = ConcurrentHashMap.newKeySet();
+		CountDownLatch latch = new CountDownLatch(20);
+		SubscribableChannel inbound = new DirectChannel();
+		inbound.subscribe(message -> {
+			threads.add(Thread.currentThread().getName());
+			received.computeIfAbsent((String) message.getHeaders().get("key"),
+					key -> new CopyOnWriteArrayList<>())
+					.add((String) message.getPayload());
+			latch.countDown();
+		});
+		FileConsumerProperties properties = new FileConsumerProperties();
+		properties.setOrderingHeader("key");
+		StringBuilder input = new StringBuilder();
+		for (int i = 0; i < 20; i++) {
+			input.append("#headers\nkey=").append(i % 2 == 0 ? "a" : "b")
+					.append("\n#payload\n").append(i).append("\n#end\n");
+		}
+		write(input.toString(), "input");
+		controller.bind("input", null, inbound, properties, 4);
+		assertThat(latch.await(1000L, TimeUnit.MILLISECONDS)).isTrue();
+		assertThat(threads).hasSize(2);
+		assertThat(received.get("a")).containsExactly("0", "2", "4", "6", "8", "10",
+				"12", "14", "16", "18");
+		assertThat(received.get("b")).containsExactly("1", "3", "5", "7", "9", "11",
+				"13", "15", "17", "19");
+	}
+
+	@Test
+	public void rebindWithConcurrency() throws Exception {
+		BlockingQueue<Message<?>> received = new LinkedBlockingQueue<>();
+		SubscribableChannel inbound = new DirectChannel();
+		inbound.subscribe(received::add);
+		controller.bind("input", null, inbound, new FileConsumerProperties(), 4);
+		int threads = Thread.activeCount();
+		for (int i = 0; i < 10; i++) {
+			controller.bind("input", null, inbound, new FileConsumerProperties(), 4);
+		}
+		// Same workers as before
+		assertThat(Thread.activeCount()).isLessThan(threads + 4);
+		BlockingQueue<Message<?>> moved = new LinkedBlockingQueue<>();
+		SubscribableChannel other = new DirectChannel();
+		other.subscribe(moved::add);
+		controller.bind("input", null, other, new FileConsumerProperties(), 4);
+		write("hello\n", "input", true);
+		assertThat(moved.poll(1000L, TimeUnit.MILLISECONDS).getPayload())
+				.isEqualTo("hello");
+		assertThat(received).isEmpty();
+	}
+
+	@Test
+	public void concurrentOffsetStopsAtFailure() throws Exception {
+		String first = concurrentRecord("a", "one");
+		concurrentFailure(first + concurrentRecord("b", "two")
+				+ concurrentRecord("a", "three"));
+		// Delivered again after a restart
+		assertThat(StreamUtils.copyToString(
+				new FileInputStream(new File(root, ".input.group.offset")),
+				Charset.defaultCharset())).isEqualTo(String.valueOf(first.length()));
+	}
+
+	@Test
+	public void concurrentErrorHandler() throws Exception {
+		List<Throwable> errors = new CopyOnWriteArrayList<>();
+		controller.setErrorHandler(errors::add);
+		String input = concurrentRecord("a", "one") + concurrentRecord("b", "two")
+				+ concurrentRecord("a", "three");
+		concurrentFailure(input);
+		assertThat(errors).hasSize(1);
+		assertThat(((MessagingException) errors.get(0)).getFailedMessage().getPayload())
+				.isEqualTo("two");
+		assertThat(StreamUtils.copyToString(
+				new FileInputStream(new File(root, ".input.group.offset")),
+				Charset.defaultCharset())).isEqualTo(String.valueOf(input.length()));
+	}
+
+	private String concurrentRecord(String key, String payload) {
+		return "#headers\nkey=" + key + "\n#payload\n" + payload + "\n#end\n";
+	}
+
+	private void concurrentFailure(String input) throws Exception {
+		CountDownLatch latch = new CountDownLatch(3);
+		SubscribableChannel inbound = new DirectChannel();
+		inbound.subscribe(message -> {
+			latch.countDown();
+			if ("two".equals(message.getPayload())) {
+				throw new IllegalStateException("Planned");
+			}
+		});
+		FileConsumerProperties properties = new FileConsumerProperties();
+		properties.setOrderingHeader("key");
+		properties.setWaitStrategy(WaitStrategy.SLEEP);
+		properties.setWaitMillis(10L);
+		write(input, "input");
+		controller.bind("input", "group", inbound, properties, 2);
+		assertThat(latch.await(1000L, TimeUnit.MILLISECONDS)).isTrue();
+		// Give the reader a chance to see how far the workers got
+		Thread.sleep(200L);
+		controller.close();
+	}
+
+	@Test
+	public void sharedIoThreads() throws Exception {
+		controller.setIoThreads(2);
+		Set<String> threads = ConcurrentHashMap.newKeySet();
+		CountDownLatch latch = new CountDownLatch(4);
+		SubscribableChannel inbound = new DirectChannel();
+		inbound.subscribe(message -> {
+			threads.add(Thread.currentThread().getName());
+			latch.countDown();
+		});
+		for (int i = 0; i < 4; i++) {
+			new File(root, "input" + i).createNewFile();
+			controller.bind("input" + i, null, inbound);
+		}
+		for (int i = 0; i < 4; i++) {
+			controller.send("input" + i, MessageBuilder.withPayload("hello").build());
+		}
+		assertThat(latch.await(1000L, TimeUnit.MILLISECONDS)).isTrue();
+		assertThat(threads.size()).isLessThanOrEqualTo(2);
+		assertThat(getOutput("input0")).isEqualTo("hello\n");
+	}
+
+	@Test
+	public void bindBeforeFileExists() throws Exception {
+		controller.setTimeout(10000L);
+		SubscribableChannel inbound = new DirectChannel();
+		BlockingQueue<Message<?>> received = new LinkedBlockingQueue<>();
+		inbound.subscribe(received::add);
+		long start = System.currentTimeMillis();
+		controller.bind("later", null, inbound);
+		assertThat(System.currentTimeMillis() - start).isLessThan(1000L);
+		assertThat(controller.isReady()).isFalse();
+		assertThat(controller.getUnavailable()).containsKey("later");
+		write("hello\n", "later");
+		controller.ready().get(1000L, TimeUnit.MILLISECONDS);
+		assertThat(received.poll(1000L, TimeUnit.MILLISECONDS).getPayload())
+				.isEqualTo("hello");
+	}
+
+	@Test
+	public void bindTimesOut() throws Exception {
+		controller.setTimeout(200L);
+		controller.bind("never", null, new DirectChannel());
+		assertThatThrownBy(() -> controller.ready().get(1000L, TimeUnit.MILLISECONDS))
+				.isInstanceOf(ExecutionException.class)
+				.hasCauseInstanceOf(IllegalStateException.class);
+		assertThat(controller.getUnavailable()).containsKey("never");
+	}
+
+	@Test
+	public void evictLeastRecentlyUsed() throws Exception {
+		controller.setMaxOutputs(2);
+		for (int i = 0; i < 4; i++) {
+			controller.send("tenant" + i, MessageBuilder.withPayload("hello").build());
+		}
+		assertThat(controller.getMetrics()).hasSize(2);
+		controller.send("tenant0", MessageBuilder.withPayload("world").build());
+		assertThat(getOutput("tenant0", "world")).isEqualTo("hello\nworld\n");
+		assertThat(getOutput("tenant1")).isEqualTo("hello\n");
+	}
+
+	@Test
+	public void evictIdle() throws Exception {
+		controller.setIdleTimeoutMillis(50L);
+		controller.send("output", MessageBuilder.withPayload("hello").build());
+		assertThat(getOutput("output")).isEqualTo("hello\n");
+		Thread.sleep(200L);
+		assertThat(controller.getMetrics()).isEmpty();
+		controller.send("output", MessageBuilder.withPayload("world").build());
+		assertThat(getOutput("output", "world")).isEqualTo("hello\nworld\n");
+	}
+
 	@Test
 	public void receiveNoHeaders() throws Exception {
 		write("hello\n", "input");
@@ -159,10 +440,575 @@ public class MessageControllerTests {
 		assertThat(result.getHeaders()).containsEntry("foo", "bar");
 	}
 
+	@Test
+	public void receiveFlux() throws Exception {
+		write("hello\nworld\nagain\n", "input");
+		List<Object> result = controller.receive("input").take(2)
+				.map(message -> (Object) message.getPayload()).collectList()
+				.block(Duration.ofSeconds(1));
+		assertThat(result).containsExactly("hello", "world");
+	}
+
+	@Test
+	public void sendFlux() throws Exception {
+		controller.send("output", Flux.just(MessageBuilder.withPayload("hello").build(),
+				MessageBuilder.withPayload("world").build())).block(Duration.ofSeconds(1));
+		assertThat(getOutput("output", "world")).isEqualTo("hello\nworld\n");
+	}
+
+	@Test
+	public void sendAsync() throws Exception {
+		controller.setDurability(WriteDurability.FSYNC_MESSAGES);
+		controller.setFsyncMessages(1);
+		CompletableFuture<Void> future = controller.sendAsync("output",
+				MessageBuilder.withPayload("hello").build());
+		future.get(1000L, TimeUnit.MILLISECONDS);
+		assertThat(getOutput("output")).isEqualTo("hello\n");
+	}
+
+	@Test
+	public void sendAsyncWriteFailure() throws Exception {
+		controller.setStorage(Storage.SEGMENTED);
+		controller.setSegmentSize(64);
+		CompletableFuture<Void> future = controller.sendAsync("segments",
+				MessageBuilder.withPayload(new String(new char[100])).build());
+		assertThatThrownBy(() -> future.get(1000L, TimeUnit.MILLISECONDS))
+				.isInstanceOf(ExecutionException.class)
+				.hasCauseInstanceOf(IllegalArgumentException.class);
+		// The writer keeps going
+		controller.sendAsync("segments", MessageBuilder.withPayload("hello").build())
+				.get(1000L, TimeUnit.MILLISECONDS);
+	}
+
+	@Test
+	public void metrics() throws Exception {
+		controller.send("output", MessageBuilder.withPayload("hello").build());
+		controller.send("output", MessageBuilder.withPayload("world").build());
+		assertThat(getOutput("output", "world")).isEqualTo("hello\nworld\n");
+		write("hello\n", "input");
+		controller.receive("input", 100L, TimeUnit.MILLISECONDS);
+		Map<String, DestinationMetrics> metrics = new HashMap<>();
+		for (DestinationMetrics item : controller.getMetrics()) {
+			metrics.put(item.getName(), item);
+		}
+		DestinationMetrics output = metrics.get("output");
+		assertThat(output.isWritable()).isTrue();
+		assertThat(output.getMessages()).isEqualTo(2);
+		assertThat(output.getBytes()).isEqualTo(12);
+		assertThat(output.getLatency().getCount()).isGreaterThan(0);
+		DestinationMetrics input = metrics.get("input");
+		assertThat(input.isWritable()).isFalse();
+		assertThat(input.getMessages()).isEqualTo(1);
+		assertThat(input.getBytes()).isEqualTo(6);
+		assertThat(input.getLag()).isEqualTo(0);
+		assertThat(input.getPending()).isEqualTo(0);
+	}
+
+	@Test
+	public void segmentedRoundTrip() throws Exception {
+		controller.setStorage(Storage.SEGMENTED);
+		controller.setSegmentSize(64);
+		controller.send("segments",
+				MessageBuilder.withPayload("hello").setHeader("foo", "bar").build());
+		controller.send("segments", MessageBuilder.withPayload("world").build());
+		controller.send("segments", MessageBuilder.withPayload("again").build());
+		Message<?> result = controller.receive("segments", 1000L,
+				TimeUnit.MILLISECONDS);
+		assertThat(result.getPayload()).isEqualTo("hello");
+		assertThat(result.getHeaders()).containsEntry("foo", "bar");
+		result = controller.receive("segments", 1000L, TimeUnit.MILLISECONDS);
+		assertThat(result.getPayload()).isEqualTo("world");
+		result = controller.receive("segments", 1000L, TimeUnit.MILLISECONDS);
+		assertThat(result.getPayload()).isEqualTo("again");
+		assertThat(new File(root, "segments").list()).hasSize(2);
+	}
+
+	@Test
+	public void restartFromCommittedOffset() throws Exception {
+		BlockingQueue<Message<?>> received = new LinkedBlockingQueue<>();
+		SubscribableChannel inbound = new DirectChannel();
+		inbound.subscribe(received::add);
+		controller.bind("input", "group", inbound);
+		write("hello\nworld\n", "input");
+		assertThat(received.poll(1000L, TimeUnit.MILLISECONDS).getPayload())
+				.isEqualTo("hello");
+		assertThat(received.poll(1000L, TimeUnit.MILLISECONDS).getPayload())
+				.isEqualTo("world");
+		controller.close();
+		assertThat(new File(root, ".input.group.offset")).exists();
+		controller = new MessageController("target/test");
+		controller.bind("input", "group", inbound);
+		write("again\n", "input", true);
+		assertThat(received.poll(1000L, TimeUnit.MILLISECONDS).getPayload())
+				.isEqualTo("again");
+	}
+
+	@Test
+	public void binaryRoundTrip() throws Exception {
+		FileProducerProperties properties = new FileProducerProperties();
+		properties.setFormat(RecordFormat.BINARY);
+		controller.subscribe("input", new DirectChannel(), properties);
+		controller.send("input", MessageBuilder.withPayload(new byte[] { 0, 10, 13, 1 })
+				.setHeader("foo", "bar").build());
+		controller.send("input", MessageBuilder.withPayload("hello\nworld").build());
+		Message<?> result = controller.receive("input", 1000L, TimeUnit.MILLISECONDS);
+		assertThat(result.getPayload()).isEqualTo(new byte[] { 0, 10, 13, 1 });
+		assertThat(result.getHeaders()).containsEntry("foo", "bar");
+		result = controller.receive("input", 1000L, TimeUnit.MILLISECONDS);
+		assertThat(result.getPayload()).isEqualTo("hello\nworld");
+	}
+
+	@Test
+	public void binaryTypedHeaders() throws Exception {
+		FileProducerProperties properties = new FileProducerProperties();
+		properties.setFormat(RecordFormat.BINARY);
+		properties.setHeaderValueDictionary(true);
+		controller.subscribe("input", new DirectChannel(), properties);
+		UUID id = UUID.randomUUID();
+		for (int i = 0; i < 2; i++) {
+			controller.send("input",
+					MessageBuilder.withPayload("hello")
+							.setHeader(MessageHeaders.CONTENT_TYPE,
+									MimeTypeUtils.APPLICATION_JSON)
+							.setHeader("count", 123L + i).setHeader("flag", true)
+							.setHeader("correlation", id)
+							.setHeader("raw", new byte[] { 1, 2 }).build());
+		}
+		for (int i = 0; i < 2; i++) {
+			Message<?> result = controller.receive("input", 1000L,
+					TimeUnit.MILLISECONDS);
+			assertThat(result.getHeaders())
+					.containsEntry(MessageHeaders.CONTENT_TYPE,
+							MimeTypeUtils.APPLICATION_JSON)
+					.containsEntry("count", 123L + i).containsEntry("flag", true)
+					.containsEntry("correlation", id);
+			assertThat((byte[]) result.getHeaders().get("raw"))
+					.isEqualTo(new byte[] { 1, 2 });
+		}
+	}
+
+	@Test
+	public void binaryRestartFromCommittedOffset() throws Exception {
+		HeaderCodec codec = new HeaderCodec(true, true);
+		FileOutputStream stream = new FileOutputStream(new File(root, "input"));
+		stream.write(BinaryRecords.encode(
+				MessageBuilder.withPayload("hello").setHeader("foo", "bar").build(),
+				codec));
+		stream.close();
+		BlockingQueue<Message<?>> received = new LinkedBlockingQueue<>();
+		SubscribableChannel inbound = new DirectChannel();
+		inbound.subscribe(received::add);
+		controller.bind("input", "group", inbound);
+		assertThat(received.poll(1000L, TimeUnit.MILLISECONDS).getPayload())
+				.isEqualTo("hello");
+		controller.close();
+		controller = new MessageController("target/test");
+		controller.bind("input", "group", inbound);
+		stream = new FileOutputStream(new File(root, "input"), true);
+		// Only refers to the header key and value by id
+		stream.write(BinaryRecords.encode(
+				MessageBuilder.withPayload("world").setHeader("foo", "bar").build(),
+				codec));
+		stream.close();
+		Message<?> result = received.poll(1000L, TimeUnit.MILLISECONDS);
+		assertThat(result.getPayload()).isEqualTo("world");
+		assertThat(result.getHeaders()).containsEntry("foo", "bar");
+	}
+
+	@Test
+	public void binaryRestartReplaysFromIndexEntry() throws Exception {
+		controller.setIndexIntervalBytes(64);
+		FileProducerProperties producer = new FileProducerProperties();
+		producer.setFormat(RecordFormat.BINARY);
+		producer.setHeaderValueDictionary(true);
+		controller.subscribe("indexed", new DirectChannel(), producer);
+		for (int i = 0; i < 20; i++) {
+			controller.sendAsync("indexed", MessageBuilder.withPayload("msg" + i)
+					.setHeader("foo", "bar" + i % 2).build()).get(1, TimeUnit.SECONDS);
+		}
+		BlockingQueue<Message<?>> received = new LinkedBlockingQueue<>();
+		SubscribableChannel inbound = new DirectChannel();
+		inbound.subscribe(received::add);
+		MessageController consumer = new MessageController("target/test");
+		try {
+			consumer.bind("indexed", "group", inbound);
+			for (int i = 0; i < 20; i++) {
+				assertThat(received.poll(1000L, TimeUnit.MILLISECONDS)).isNotNull();
+			}
+		}
+		finally {
+			consumer.close();
+		}
+		consumer = new MessageController("target/test");
+		try {
+			consumer.bind("indexed", "group", inbound);
+			// Only refers to the header value by id
+			controller.sendAsync("indexed", MessageBuilder.withPayload("msg20")
+					.setHeader("foo", "bar0").build()).get(1, TimeUnit.SECONDS);
+			Message<?> result = received.poll(1000L, TimeUnit.MILLISECONDS);
+			assertThat(result.getPayload()).isEqualTo("msg20");
+			assertThat(result.getHeaders()).containsEntry("foo", "bar0");
+		}
+		finally {
+			consumer.close();
+		}
+	}
+
+	@Test
+	public void binarySegmentedRoundTrip() throws Exception {
+		controller.setStorage(Storage.SEGMENTED);
+		controller.setSegmentSize(96);
+		FileProducerProperties properties = new FileProducerProperties();
+		properties.setFormat(RecordFormat.BINARY);
+		controller.subscribe("segments", new DirectChannel(), properties);
+		for (int i = 0; i < 4; i++) {
+			controller.send("segments",
+					MessageBuilder.withPayload("hello" + i).setHeader("foo", i).build());
+		}
+		for (int i = 0; i < 4; i++) {
+			Message<?> result = controller.receive("segments", 1000L,
+					TimeUnit.MILLISECONDS);
+			assertThat(result.getPayload()).isEqualTo("hello" + i);
+			assertThat(result.getHeaders()).containsEntry("foo", i);
+		}
+		assertThat(new File(root, "segments").list().length).isGreaterThan(1);
+	}
+
+	@Test
+	public void compressedRoundTrip() throws Exception {
+		FileProducerProperties properties = new FileProducerProperties();
+		properties.setFormat(RecordFormat.COMPRESSED);
+		controller.subscribe("input", new DirectChannel(), properties);
+		for (int i = 0; i < 100; i++) {
+			controller.send("input",
+					MessageBuilder.withPayload("{\"id\":" + i + ",\"value\":\"hello\"}")
+							.setHeader("foo", "bar").build());
+		}
+		for (int i = 0; i < 100; i++) {
+			Message<?> result = controller.receive("input", 1000L,
+					TimeUnit.MILLISECONDS);
+			assertThat(result.getPayload())
+					.isEqualTo("{\"id\":" + i + ",\"value\":\"hello\"}");
+			assertThat(result.getHeaders()).containsEntry("foo", "bar");
+		}
+		assertThat(new File(root, "input").length()).isLessThan(100 * 30);
+	}
+
+	@Test
+	public void compressedSegmentedRoundTrip() throws Exception {
+		controller.setStorage(Storage.SEGMENTED);
+		FileProducerProperties properties = new FileProducerProperties();
+		properties.setFormat(RecordFormat.COMPRESSED);
+		properties.setBlockSize(16);
+		controller.subscribe("segments", new DirectChannel(), properties);
+		controller.send("segments", MessageBuilder.withPayload("hello").build());
+		controller.send("segments", MessageBuilder.withPayload("world").build());
+		Message<?> result = controller.receive("segments", 1000L,
+				TimeUnit.MILLISECONDS);
+		assertThat(result.getPayload()).isEqualTo("hello");
+		result = controller.receive("segments", 1000L, TimeUnit.MILLISECONDS);
+		assertThat(result.getPayload()).isEqualTo("world");
+	}
+
+	@Test
+	public void startFromOffset() throws Exception {
+		controller.setIndexIntervalBytes(64);
+		FileProducerProperties producer = new FileProducerProperties();
+		producer.setFormat(RecordFormat.BINARY);
+		controller.subscribe("indexed", new DirectChannel(), producer);
+		for (int i = 0; i < 20; i++) {
+			controller.sendAsync("indexed", MessageBuilder.withPayload("msg" + i)
+					.setHeader("foo", "bar" + i % 2).build()).get(1, TimeUnit.SECONDS);
+		}
+		assertThat(new File(root, ".indexed.index").length())
+				.isGreaterThan(OffsetIndex.ENTRY_LENGTH);
+		MessageController consumer = new MessageController("target/test");
+		try {
+			FileConsumerProperties properties = new FileConsumerProperties();
+			properties.setStartPosition(StartPosition.OFFSET);
+			properties.setStartOffset(13L);
+			List<Message<?>> messages = consumer.receive("indexed", properties).take(2)
+					.collectList().block(Duration.ofSeconds(2));
+			assertThat(messages.get(0).getPayload()).isEqualTo("msg13");
+			assertThat(messages.get(0).getHeaders()).containsEntry("foo", "bar1");
+			assertThat(messages.get(1).getPayload()).isEqualTo("msg14");
+			assertThat(messages.get(1).getHeaders()).containsEntry("foo", "bar0");
+		}
+		finally {
+			consumer.close();
+		}
+	}
+
+	@Test
+	public void startFromLatest() throws Exception {
+		for (int i = 0; i < 20; i++) {
+			controller.sendAsync("indexed", MessageBuilder.withPayload("msg" + i).build())
+					.get(1, TimeUnit.SECONDS);
+		}
+		FileConsumerProperties properties = new FileConsumerProperties();
+		properties.setStartPosition(StartPosition.LATEST);
+		BlockingQueue<Message<?>> received = new LinkedBlockingQueue<>();
+		DirectChannel inbound = new DirectChannel();
+		inbound.subscribe(received::add);
+		MessageController consumer = new MessageController("target/test");
+		try {
+			consumer.bind("indexed", null, inbound, properties);
+			consumer.ready().get(1, TimeUnit.SECONDS);
+			assertThat(received.poll(100L, TimeUnit.MILLISECONDS)).isNull();
+			controller.send("indexed", MessageBuilder.withPayload("latest").build());
+			assertThat(received.poll(1000L, TimeUnit.MILLISECONDS).getPayload())
+					.isEqualTo("latest");
+		}
+		finally {
+			consumer.close();
+		}
+	}
+
+	@Test
+	public void indexCountsMessagesWrittenBeforeIt() throws Exception {
+		write("one\ntwo\nthree\n", "indexed");
+		controller.setIndexIntervalBytes(8);
+		controller.subscribe("indexed", new DirectChannel(),
+				new FileProducerProperties());
+		controller.sendAsync("indexed", MessageBuilder.withPayload("four").build())
+				.get(1, TimeUnit.SECONDS);
+		OffsetIndex index = new OffsetIndex(new File(root, ".indexed.index"));
+		assertThat(index.last().sequence).isEqualTo(3L);
+		assertThat(index.last().position)
+				.isLessThanOrEqualTo(new File(root, "indexed").length());
+	}
+
+	@Test
+	public void startFromLatestWithoutIndex() throws Exception {
+		write("one\ntwo\n", "input");
+		FileConsumerProperties properties = new FileConsumerProperties();
+		properties.setStartPosition(StartPosition.LATEST);
+		BlockingQueue<Message<?>> received = new LinkedBlockingQueue<>();
+		DirectChannel inbound = new DirectChannel();
+		inbound.subscribe(received::add);
+		controller.bind("input", null, inbound, properties);
+		controller.ready().get(1, TimeUnit.SECONDS);
+		assertThat(received.poll(100L, TimeUnit.MILLISECONDS)).isNull();
+		write("three\n", "input", true);
+		assertThat(received.poll(1000L, TimeUnit.MILLISECONDS).getPayload())
+				.isEqualTo("three");
+	}
+
+	@Test
+	public void startFromOffsetWithIndexAheadOfFile() throws Exception {
+		write("zero\none\ntwo\nthree\n", "input");
+		OffsetIndex index = new OffsetIndex(new File(root, ".input.index"));
+		index.append(0L, 1000L, 0L);
+		index.append(2L, 2000L, 1000L);
+		index.close();
+		FileConsumerProperties properties = new FileConsumerProperties();
+		properties.setStartPosition(StartPosition.OFFSET);
+		properties.setStartOffset(3L);
+		BlockingQueue<Message<?>> received = new LinkedBlockingQueue<>();
+		DirectChannel inbound = new DirectChannel();
+		inbound.subscribe(received::add);
+		controller.bind("input", null, inbound, properties);
+		assertThat(received.poll(1000L, TimeUnit.MILLISECONDS).getPayload())
+				.isEqualTo("three");
+	}
+
+	@Test
+	public void multipleProducers() throws Exception {
+		FileProducerProperties properties = new FileProducerProperties();
+		properties.setFormat(RecordFormat.BINARY);
+		properties.setHeaderValueDictionary(true);
+		properties.setMultipleProducers(true);
+		MessageController other = new MessageController("target/test");
+		try {
+			controller.subscribe("shared", new DirectChannel(), properties);
+			other.subscribe("shared", new DirectChannel(), properties);
+			for (int i = 0; i < 10; i++) {
+				controller.sendAsync("shared", MessageBuilder.withPayload("one" + i)
+						.setHeader("producer", "one").build()).get(1, TimeUnit.SECONDS);
+				other.sendAsync("shared", MessageBuilder.withPayload("two" + i)
+						.setHeader("producer", "two").build()).get(1, TimeUnit.SECONDS);
+			}
+		}
+		finally {
+			other.close();
+		}
+		for (int i = 0; i < 20; i++) {
+			Message<?> result = controller.receive("shared", 1000L,
+					TimeUnit.MILLISECONDS);
+			assertThat((String) result.getPayload())
+					.startsWith((String) result.getHeaders().get("producer"));
+		}
+	}
+
+	@Test
+	public void codecPayload() throws Exception {
+		controller.setCodec(new PojoCodec());
+		controller.setTrustedPayloadTypes(Foo.class.getName());
+		FileProducerProperties properties = new FileProducerProperties();
+		properties.setFormat(RecordFormat.BINARY);
+		properties.setUseCodec(true);
+		controller.subscribe("input", new DirectChannel(), properties);
+		controller.send("input", MessageBuilder.withPayload(new Foo("hello")).build());
+		controller.send("input", MessageBuilder.withPayload("world").build());
+		Message<?> result = controller.receive("input", 1000L, TimeUnit.MILLISECONDS);
+		assertThat(result.getPayload()).isInstanceOf(Foo.class);
+		assertThat(((Foo) result.getPayload()).getName()).isEqualTo("hello");
+		result = controller.receive("input", 1000L, TimeUnit.MILLISECONDS);
+		assertThat(result.getPayload()).isEqualTo("world");
+	}
+
+	@Test
+	public void codecPayloadOfUntrustedType() throws Exception {
+		controller.setCodec(new PojoCodec());
+		controller.setTrustedPayloadTypes("com.example.*");
+		FileProducerProperties properties = new FileProducerProperties();
+		properties.setFormat(RecordFormat.BINARY);
+		properties.setUseCodec(true);
+		controller.subscribe("input", new DirectChannel(), properties);
+		controller.send("input", MessageBuilder.withPayload(new Foo("hello")).build());
+		Message<?> result = controller.receive("input", 1000L, TimeUnit.MILLISECONDS);
+		assertThat(result.getPayload()).isInstanceOf(byte[].class);
+	}
+
+	@Test
+	public void receiveBatch() throws Exception {
+		write("one\ntwo\nthree\n", "input");
+		List<Message<?>> messages = controller.receiveBatch("input", 2, 1000L,
+				TimeUnit.MILLISECONDS);
+		assertThat(messages).isNotEmpty().hasSizeLessThanOrEqualTo(2);
+		assertThat(messages.get(0).getPayload()).isEqualTo("one");
+		int count = messages.size();
+		while (count < 3 && !messages.isEmpty()) {
+			messages = controller.receiveBatch("input", 2, 1000L, TimeUnit.MILLISECONDS);
+			count += messages.size();
+		}
+		assertThat(count).isEqualTo(3);
+		assertThat(controller.receiveBatch("input", 2, 100L, TimeUnit.MILLISECONDS))
+				.isEmpty();
+	}
+
+	@Test
+	public void receiveBatchOfNothing() throws Exception {
+		assertThatThrownBy(() -> controller.receiveBatch("input", 0, 1000L,
+				TimeUnit.MILLISECONDS)).isInstanceOf(IllegalArgumentException.class)
+						.hasMessageContaining("maxMessages");
+	}
+
+	@Test
+	public void loopback() throws Exception {
+		controller.setLoopback(true);
+		write("old\n", "input");
+		SubscribableChannel inbound = new DirectChannel();
+		List<Object> payloads = new CopyOnWriteArrayList<>();
+		CountDownLatch latch = new CountDownLatch(3);
+		inbound.subscribe(message -> {
+			payloads.add(message.getPayload());
+			latch.countDown();
+		});
+		controller.bind("input", "group", inbound);
+		controller.send("input", MessageBuilder.withPayload("hello").build());
+		controller.send("input", MessageBuilder.withPayload("world").build());
+		assertThat(latch.await(1000L, TimeUnit.MILLISECONDS)).isTrue();
+		// Still written for everyone else, but not delivered again
+		assertThat(getOutput("input", "world")).isEqualTo("old\nhello\nworld\n");
+		Thread.sleep(100L);
+		// The ones that were handed over can overtake the one in the file
+		assertThat(payloads).containsExactlyInAnyOrder("old", "hello", "world");
+		assertThat(payloads.indexOf("hello")).isLessThan(payloads.indexOf("world"));
+	}
+
+	@Test
+	public void loopbackBufferFull() throws Exception {
+		controller.setLoopback(true);
+		write("", "input");
+		controller.subscribe("input", new DirectChannel(), new FileProducerProperties());
+		assertThat(controller.receive("input", 10L, TimeUnit.MILLISECONDS)).isNull();
+		CompletableFuture<Void> last = null;
+		for (int i = 0; i < 3000; i++) {
+			last = controller.sendAsync("input",
+					MessageBuilder.withPayload("msg" + i).build());
+		}
+		last.get(1, TimeUnit.SECONDS);
+		// The ones that did not fit in the buffer are read from the file
+		Set<Object> payloads = new HashSet<>();
+		for (int i = 0; i < 3000; i++) {
+			Message<?> result = controller.receive("input", 1000L,
+					TimeUnit.MILLISECONDS);
+			assertThat(result).isNotNull();
+			assertThat(payloads.add(result.getPayload())).isTrue();
+		}
+		assertThat(controller.receive("input", 100L, TimeUnit.MILLISECONDS)).isNull();
+	}
+
+	@Test
+	public void sharedReaderRecoversFromFailure() throws Exception {
+		controller.setIoThreads(2);
+		write("one\ntwo\n", "input");
+		BlockingQueue<Object> received = new LinkedBlockingQueue<>();
+		AtomicBoolean first = new AtomicBoolean(true);
+		SubscribableChannel inbound = new DirectChannel();
+		inbound.subscribe(message -> {
+			received.add(message.getPayload());
+			if (first.compareAndSet(true, false)) {
+				// Closes the channel the next time the reader uses it
+				Thread.currentThread().interrupt();
+			}
+		});
+		controller.bind("input", null, inbound);
+		assertThat(received.poll(1000L, TimeUnit.MILLISECONDS)).isEqualTo("one");
+		assertThat(received.poll(1000L, TimeUnit.MILLISECONDS)).isEqualTo("two");
+		Thread.sleep(100L);
+		write("three\n", "input", true);
+		assertThat(received.poll(3000L, TimeUnit.MILLISECONDS)).isEqualTo("three");
+		assertThat(received.poll(100L, TimeUnit.MILLISECONDS)).isNull();
+		assertThat(controller.getUnavailable()).isEmpty();
+	}
+
+	@Test
+	public void receiveMixedFormats() throws Exception {
+		write("hello\n", "input");
+		FileOutputStream stream = new FileOutputStream(new File(root, "input"), true);
+		stream.write(BinaryRecords
+				.encode(MessageBuilder.withPayload("binary").setHeader("foo", "bar")
+						.build()));
+		stream.close();
+		write("world\n", "input", true);
+		assertThat(controller.receive("input", 1000L, TimeUnit.MILLISECONDS)
+				.getPayload()).isEqualTo("hello");
+		Message<?> result = controller.receive("input", 1000L, TimeUnit.MILLISECONDS);
+		assertThat(result.getPayload()).isEqualTo("binary");
+		assertThat(result.getHeaders()).containsEntry("foo", "bar");
+		assertThat(controller.receive("input", 1000L, TimeUnit.MILLISECONDS)
+				.getPayload()).isEqualTo("world");
+	}
+
+	@Test
+	public void skipCorruptRecord() throws Exception {
+		byte[] corrupt = BinaryRecords.encode(
+				MessageBuilder.withPayload("corrupt").setHeader("foo", "bar").build());
+		// More headers than there are bytes in the record
+		corrupt[6] = (byte) 0x7f;
+		corrupt[7] = (byte) 0xff;
+		FileOutputStream stream = new FileOutputStream(new File(root, "input"));
+		stream.write(corrupt);
+		stream.write(BinaryRecords
+				.encode(MessageBuilder.withPayload("good").setHeader("foo", "bar")
+						.build()));
+		stream.close();
+		Message<?> result = controller.receive("input", 1000L, TimeUnit.MILLISECONDS);
+		assertThat(result.getPayload()).isEqualTo("good");
+		assertThat(result.getHeaders()).containsEntry("foo", "bar");
+	}
+
 	private void write(String value, String filename)
 			throws IOException, FileNotFoundException {
+		write(value, filename, false);
+	}
+
+	private void write(String value, String filename, boolean append)
+			throws IOException, FileNotFoundException {
 		StreamUtils.copy(value, Charset.forName("UTF-8"),
-				new FileOutputStream(new File(root, filename)));
+				new FileOutputStream(new File(root, filename), append));
 	}
 
 	private String getOutput(String output) throws Exception {
@@ -184,4 +1030,21 @@ public class MessageControllerTests {
 		return result;
 	}
 
+	public static class Foo {
+
+		private String name;
+
+		public Foo() {
+		}
+
+		public Foo(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return this.name;
+		}
+
+	}
+
 }
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.binder.file;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.springframework.util.FileSystemUtils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Dave Syer
+ *
+ */
+public class OffsetIndexTests {
+
+	private File root = new File("target/index");
+
+	private OffsetIndex index = new OffsetIndex(new File(this.root, ".test.index"));
+
+	@Before
+	public void init() {
+		FileSystemUtils.deleteRecursively(this.root);
+		this.root.mkdirs();
+	}
+
+	@After
+	public void close() throws Exception {
+		this.index.close();
+	}
+
+	@Test
+	public void empty() throws Exception {
+		assertThat(this.index.last()).isNull();
+		assertThat(this.index.floorSequence(10L)).isNull();
+	}
+
+	@Test
+	public void floor() throws Exception {
+		for (int i = 0; i < 10; i++) {
+			this.index.append(i * 10, 1000L + i * 100, i * 200);
+		}
+		assertThat(this.index.last().sequence).isEqualTo(90L);
+		assertThat(this.index.floorSequence(0L).position).isEqualTo(0L);
+		assertThat(this.index.floorSequence(35L).sequence).isEqualTo(30L);
+		assertThat(this.index.floorSequence(500L).sequence).isEqualTo(90L);
+		assertThat(this.index.floorTimestamp(1450L).position).isEqualTo(800L);
+		assertThat(this.index.floorTimestamp(999L)).isNull();
+		assertThat(this.index.floorPosition(450L).sequence).isEqualTo(20L);
+		assertThat(this.index.floorPosition(600L).sequence).isEqualTo(30L);
+	}
+
+	@Test
+	public void timestampsNeverGoBackwards() throws Exception {
+		this.index.append(0L, 2000L, 0L);
+		this.index.append(10L, 1000L, 100L);
+		assertThat(this.index.last().timestamp).isEqualTo(2000L);
+	}
+
+	@Test
+	public void partialEntryDropped() throws Exception {
+		this.index.append(0L, 1000L, 0L);
+		this.index.close();
+		try (RandomAccessFile file = new RandomAccessFile(this.index.getFile(), "rw")) {
+			file.seek(file.length());
+			file.write(new byte[] { 1, 2, 3 });
+		}
+		this.index.append(10L, 2000L, 100L);
+		assertThat(this.index.getFile().length())
+				.isEqualTo(2 * OffsetIndex.ENTRY_LENGTH);
+		assertThat(this.index.last().sequence).isEqualTo(10L);
+	}
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.binder.file;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import org.springframework.messaging.Message;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Dave Syer
+ *
+ */
+public class RecordReaderTests {
+
+	@Test
+	public void singleLines() throws Exception {
+		RecordReader reader = reader("hello\r\nworld\n");
+		assertThat(TextRecords.parse(reader).getPayload()).isEqualTo("hello");
+		assertThat(reader.getPosition()).isEqualTo(7);
+		assertThat(TextRecords.parse(reader).getPayload()).isEqualTo("world");
+		assertThat(TextRecords.parse(reader)).isNull();
+		assertThat(reader.getPosition()).isEqualTo(13);
+	}
+
+	@Test
+	public void headersAndPayload() throws Exception {
+		RecordReader reader = reader(
+				"#headers\nfoo=bar\n#payload\nhello\r\nworld\n#end\n");
+		Message<?> message = TextRecords.parse(reader);
+		assertThat(message.getPayload())
+				.isEqualTo("hello" + System.getProperty("line.separator") + "world");
+		assertThat(message.getHeaders()).containsEntry("foo", "bar");
+	}
+
+	@Test
+	public void partialRecordNotConsumed() throws Exception {
+		Pipe pipe = Pipe.open();
+		pipe.source().configureBlocking(false);
+		RecordReader reader = new RecordReader(pipe.source(), 0L);
+		write(pipe, "#headers\nfoo=bar\n#payload\nhel");
+		assertThat(TextRecords.parse(reader)).isNull();
+		assertThat(reader.getPosition()).isEqualTo(0);
+		write(pipe, "lo\n#end\n");
+		Message<?> message = TextRecords.parse(reader);
+		assertThat(message.getPayload()).isEqualTo("hello");
+		assertThat(message.getHeaders()).containsEntry("foo", "bar");
+		assertThat(reader.getPosition()).isEqualTo(37);
+		reader.close();
+		pipe.sink().close();
+	}
+
+	@Test
+	public void bufferGrows() throws Exception {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			builder.append("x");
+		}
+		Pipe pipe = Pipe.open();
+		pipe.source().configureBlocking(false);
+		RecordReader reader = new RecordReader(pipe.source(), 0L);
+		write(pipe, builder.toString());
+		assertThat(TextRecords.parse(reader)).isNull();
+		write(pipe, "\n");
+		assertThat(TextRecords.parse(reader).getPayload())
+				.isEqualTo(builder.toString());
+		reader.close();
+		pipe.sink().close();
+	}
+
+	private RecordReader reader(String text) {
+		return new RecordReader(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private void write(Pipe pipe, String text) throws Exception {
+		ByteBuffer buffer = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+		while (buffer.hasRemaining()) {
+			pipe.sink().write(buffer);
+		}
+	}
+
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.binder.file;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Dave Syer
+ *
+ */
+public class RingBufferTests {
+
+	@Test
+	public void capacityRoundedUp() throws Exception {
+		assertThat(new RingBuffer<String>(1000, OverflowPolicy.BLOCK).capacity())
+				.isEqualTo(1024);
+		assertThat(new RingBuffer<String>(4, OverflowPolicy.BLOCK).capacity())
+				.isEqualTo(4);
+	}
+
+	@Test
+	public void firstInFirstOut() throws Exception {
+		RingBuffer<String> buffer = new RingBuffer<>(4, OverflowPolicy.BLOCK);
+		buffer.put("foo");
+		buffer.put("bar");
+		assertThat(buffer.size()).isEqualTo(2);
+		assertThat(buffer.poll()).isEqualTo("foo");
+		assertThat(buffer.poll()).isEqualTo("bar");
+		assertThat(buffer.poll()).isNull();
+		assertThat(buffer.isEmpty()).isTrue();
+	}
+
+	@Test
+	public void wrapAround() throws Exception {
+		RingBuffer<Integer> buffer = new RingBuffer<>(2, OverflowPolicy.BLOCK);
+		for (int i = 0; i < 10; i++) {
+			buffer.put(i);
+			assertThat(buffer.poll()).isEqualTo(i);
+		}
+	}
+
+	@Test
+	public void fail() throws Exception {
+		RingBuffer<String> buffer = new RingBuffer<>(2, OverflowPolicy.FAIL);
+		assertThat(buffer.put("foo")).isTrue();
+		assertThat(buffer.put("bar")).isTrue();
+		assertThat(buffer.put("spam")).isFalse();
+		assertThat(buffer.size()).isEqualTo(2);
+	}
+
+	@Test
+	public void dropOldest() throws Exception {
+		RingBuffer<String> buffer = new RingBuffer<>(2, OverflowPolicy.DROP_OLDEST);
+		buffer.put("foo");
+		buffer.put("bar");
+		assertThat(buffer.put("spam")).isTrue();
+		assertThat(buffer.poll()).isEqualTo("bar");
+		assertThat(buffer.poll()).isEqualTo("spam");
+	}
+
+	@Test
+	public void dropNewest() throws Exception {
+		RingBuffer<String> buffer = new RingBuffer<>(2, OverflowPolicy.DROP_NEWEST);
+		buffer.put("foo");
+		buffer.put("bar");
+		assertThat(buffer.put("spam")).isFalse();
+		assertThat(buffer.poll()).isEqualTo("foo");
+		assertThat(buffer.poll()).isEqualTo("bar");
+	}
+
+	@Test
+	public void blockUntilSpace() throws Exception {
+		RingBuffer<String> buffer = new RingBuffer<>(2, OverflowPolicy.BLOCK);
+		buffer.put("foo");
+		buffer.put("bar");
+		CountDownLatch latch = new CountDownLatch(1);
+		new Thread(() -> {
+			try {
+				buffer.put("spam");
+				latch.countDown();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}).start();
+		assertThat(latch.await(100L, TimeUnit.MILLISECONDS)).isFalse();
+		assertThat(buffer.poll()).isEqualTo("foo");
+		assertThat(latch.await(1000L, TimeUnit.MILLISECONDS)).isTrue();
+	}
+
+	@Test
+	public void pollWithTimeout() throws Exception {
+		RingBuffer<String> buffer = new RingBuffer<>(2, OverflowPolicy.BLOCK);
+		assertThat(buffer.poll(10L, TimeUnit.MILLISECONDS)).isNull();
+		new Thread(() -> {
+			try {
+				Thread.sleep(50L);
+				buffer.put("foo");
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}).start();
+		assertThat(buffer.poll(1000L, TimeUnit.MILLISECONDS)).isEqualTo("foo");
+	}
+
+	@Test
+	public void concurrentProducers() throws Exception {
+		RingBuffer<Integer> buffer = new RingBuffer<>(16, OverflowPolicy.BLOCK);
+		int count = 10000;
+		for (int t = 0; t < 4; t++) {
+			new Thread(() -> {
+				try {
+					for (int i = 0; i < count; i++) {
+						buffer.put(i);
+					}
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}).start();
+		}
+		List<Integer> result = new ArrayList<>();
+		while (result.size() < 4 * count) {
+			Integer item = buffer.poll(1000L, TimeUnit.MILLISECONDS);
+			assertThat(item).isNotNull();
+			result.add(item);
+		}
+		assertThat(buffer.isEmpty()).isTrue();
+	}
+
+	@Test
+	public void blockingHandoff() throws Exception {
+		// Waits have no timeout of their own, so a missed signal would stall this
+		RingBuffer<Integer> buffer = new RingBuffer<>(2, OverflowPolicy.BLOCK);
+		int count = 20000;
+		AtomicInteger received = new AtomicInteger();
+		CountDownLatch consumers = new CountDownLatch(2);
+		for (int t = 0; t < 2; t++) {
+			new Thread(() -> {
+				try {
+					Integer item;
+					while ((item = buffer.poll(5000L, TimeUnit.MILLISECONDS)) != null
+							&& item >= 0) {
+						received.incrementAndGet();
+					}
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				consumers.countDown();
+			}).start();
+		}
+		List<Thread> producers = new ArrayList<>();
+		for (int t = 0; t < 2; t++) {
+			Thread producer = new Thread(() -> {
+				try {
+					for (int i = 0; i < count; i++) {
+						buffer.put(i);
+					}
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+			producers.add(producer);
+			producer.start();
+		}
+		for (Thread producer : producers) {
+			producer.join(5000L);
+		}
+		buffer.put(-1);
+		buffer.put(-1);
+		assertThat(consumers.await(5000L, TimeUnit.MILLISECONDS)).isTrue();
+		assertThat(received.get()).isEqualTo(2 * count);
+	}
+
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.binder.file;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import org.springframework.util.FileSystemUtils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Dave Syer
+ *
+ */
+public class SegmentedLogTests {
+
+	private File root = new File("target/segments");
+
+	private SegmentedLog log = new SegmentedLog(this.root, 32);
+
+	@Before
+	public void init() {
+		FileSystemUtils.deleteRecursively(this.root);
+	}
+
+	@Test
+	public void rollWhenFull() throws Exception {
+		append(10);
+		assertThat(segments(this.root)).hasSize(4);
+		assertThat(read(this.log.reader())).hasSize(10);
+	}
+
+	@Test
+	public void rollAfterTime() throws Exception {
+		this.log.setRollMillis(10L);
+		SegmentedLog.Appender appender = this.log.appender();
+		appender.append(bytes(0));
+		Thread.sleep(20L);
+		appender.append(bytes(1));
+		appender.close();
+		assertThat(segments(this.root)).hasSize(2);
+		assertThat(read(this.log.reader())).containsExactly("msg00", "msg01");
+	}
+
+	@Test
+	public void retainBytes() throws Exception {
+		append(10);
+		assertThat(this.log.retain(64, 0, RetentionAction.DELETE)).isEqualTo(2);
+		assertThat(segments(this.root)).hasSize(2);
+		assertThat(read(this.log.reader())).containsExactly("msg06", "msg07", "msg08",
+				"msg09");
+	}
+
+	@Test
+	public void retainAge() throws Exception {
+		append(10);
+		for (File file : segments(this.root)) {
+			file.setLastModified(System.currentTimeMillis() - 10000L);
+		}
+		// Never removes the last segment
+		assertThat(this.log.retain(0, 1000L, RetentionAction.DELETE)).isEqualTo(3);
+		assertThat(segments(this.root)).hasSize(1);
+	}
+
+	@Test
+	public void retainArchive() throws Exception {
+		append(10);
+		this.log.retain(64, 0, RetentionAction.ARCHIVE);
+		assertThat(segments(new File(this.root, "archive"))).hasSize(2);
+		assertThat(segments(this.root)).hasSize(2);
+	}
+
+	@Test
+	public void readerSkipsRemovedSegments() throws Exception {
+		append(10);
+		SegmentedLog.Reader reader = this.log.reader();
+		assertThat(new String(reader.next(), StandardCharsets.UTF_8)).isEqualTo("msg00");
+		long offset = reader.getOffset();
+		this.log.retain(64, 0, RetentionAction.DELETE);
+		// Finishes the segment it has mapped, and then skips to the oldest remaining
+		assertThat(read(reader)).containsExactly("msg01", "msg02", "msg06", "msg07",
+				"msg08", "msg09");
+		assertThat(read(this.log.reader(offset))).startsWith("msg06");
+	}
+
+	@Test
+	public void readWhileAppending() throws Exception {
+		SegmentedLog log = new SegmentedLog(this.root, 4096);
+		int count = 10000;
+		Thread writer = new Thread(() -> {
+			try {
+				SegmentedLog.Appender appender = log.appender();
+				for (int i = 0; i < count; i++) {
+					appender.append(record(i));
+				}
+				appender.close();
+			}
+			catch (Exception e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		writer.start();
+		SegmentedLog.Reader reader = log.reader();
+		int read = 0;
+		long deadline = System.currentTimeMillis() + 10000L;
+		while (read < count && System.currentTimeMillis() < deadline) {
+			byte[] bytes = reader.next();
+			if (bytes != null) {
+				// Never the length without the payload
+				assertThat(bytes).isEqualTo(record(read++));
+			}
+		}
+		writer.join();
+		reader.close();
+		assertThat(read).isEqualTo(count);
+	}
+
+	private byte[] record(int i) {
+		byte[] bytes = new byte[1 + i % 100];
+		Arrays.fill(bytes, (byte) (1 + i % 100));
+		return bytes;
+	}
+
+	private void append(int count) throws Exception {
+		SegmentedLog.Appender appender = this.log.appender();
+		for (int i = 0; i < count; i++) {
+			appender.append(bytes(i));
+		}
+		appender.close();
+	}
+
+	private byte[] bytes(int i) {
+		return String.format("msg%02d", i).getBytes(StandardCharsets.UTF_8);
+	}
+
+	private List<String> read(SegmentedLog.Reader reader) throws Exception {
+		List<String> result = new ArrayList<>();
+		byte[] bytes;
+		while ((bytes = reader.next()) != null) {
+			result.add(new String(bytes, StandardCharsets.UTF_8));
+		}
+		reader.close();
+		return result;
+	}
+
+	private List<File> segments(File directory) {
+		List<File> result = new ArrayList<>();
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.getName().endsWith(".log")) {
+					result.add(file);
+				}
+			}
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.cloud.stream.binder.file.test;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.cloud.stream.annotation.EnableBinding;
+import org.springframework.cloud.stream.annotation.StreamListener;
+import org.springframework.cloud.stream.binder.file.MessageController;
+import org.springframework.cloud.stream.messaging.Processor;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.handler.annotation.SendTo;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.util.FileSystemUtils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Dave Syer
+ *
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest({ "spring.cloud.stream.binder.file.prefix=target/partitioned",
+		"spring.cloud.stream.bindings.input.group=test",
+		"spring.cloud.stream.bindings.input.consumer.partitioned=true",
+		"spring.cloud.stream.bindings.input.consumer.instanceCount=2",
+		"spring.cloud.stream.bindings.input.consumer.instanceIndex=1",
+		"spring.cloud.stream.bindings.output.producer.partitionKeyExpression=payload",
+		"spring.cloud.stream.bindings.output.producer.partitionCount=2",
+		"logging.level.root=INFO",
+		"logging.level.org.springframework.cloud.stream.binder.file=DEBUG" })
+@DirtiesContext
+public class PartitionedMessageChannelBinderTests {
+
+	@Autowired
+	private MessageController controller;
+
+	@BeforeClass
+	public static void init() throws Exception {
+		File root = new File("target/partitioned");
+		FileSystemUtils.deleteRecursively(root);
+		root.mkdirs();
+		for (int i = 0; i < 2; i++) {
+			new File(root, "input-" + i).createNewFile();
+			new File(root, "output-" + i).createNewFile();
+		}
+	}
+
+	@Test
+	public void ownPartition() throws Exception {
+		controller.send("input-1", MessageBuilder.withPayload("hello").build());
+		Message<?> message = controller.receive(output("HELLO"), 1000,
+				TimeUnit.MILLISECONDS);
+		assertThat(message.getPayload()).isEqualTo("HELLO");
+	}
+
+	@Test
+	public void otherPartition() throws Exception {
+		controller.send("input-0", MessageBuilder.withPayload("world").build());
+		Message<?> message = controller.receive(output("WORLD"), 200,
+				TimeUnit.MILLISECONDS);
+		assertThat(message).isNull();
+	}
+
+	private String output(String key) {
+		// Same as the default partition selector
+		return MessageController.partitionName("output", Math.abs(key.hashCode()) % 2);
+	}
+
+	@SpringBootApplication
+	@EnableBinding(Processor.class)
+	protected static class TestConfiguration {
+		@StreamListener(Processor.INPUT)
+		@SendTo(Processor.OUTPUT)
+		public String uppercase(String input) {
+			return input.toUpperCase();
+		}
+	}
+
+}